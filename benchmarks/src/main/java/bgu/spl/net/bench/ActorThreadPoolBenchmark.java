@@ -0,0 +1,69 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.srv.ActorThreadPool;
+import bgu.spl.net.srv.Mailbox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+//ActorThreadPool.submit: TASKS small tasks spread over the actors, each invocation waits until all of them ran
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActorThreadPoolBenchmark {
+
+    private static final int TASKS = 10_000;
+
+    @Param({"1", "16", "1024"})
+    public int actors;
+
+    @Param({"4"})
+    public int threads;
+
+    @Param({"1", "16"})
+    public int tasksPerTurn;
+
+    private ActorThreadPool pool;
+    private Mailbox[] mailboxes;
+
+    @Setup
+    public void setup() {
+        pool = new ActorThreadPool(threads, tasksPerTurn);
+        mailboxes = new Mailbox[actors];
+        for (int i = 0; i < actors; i++) {
+            mailboxes[i] = new Mailbox();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void submit() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(TASKS);
+        Runnable task = done::countDown;
+        for (int i = 0; i < TASKS; i++) {
+            pool.submit(mailboxes[i % actors], task);
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,56 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.stomp.ConnectionsImpl;
+import bgu.spl.net.impl.stomp.Frame;
+import bgu.spl.net.impl.stomp.StompEncoderDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+//ConnectionsImpl.send(channel, msg): a frame to every subscriber of a channel, each stub handler encodes it
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanoutBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int subscribers;
+
+    @Param({"256", "4096"})
+    public int bodySize;
+
+    private ConnectionsImpl<Frame> connections;
+    private Frame message;
+
+    @Setup
+    public void setup() {
+        connections = new ConnectionsImpl<>();
+        for (int id = 0; id < subscribers; id++) {
+            StubConnectionHandler<Frame> handler = new StubConnectionHandler<>(new StompEncoderDecoder());
+            connections.addHandler(id, handler);
+            connections.addUser(id, "unit" + id, "pass", handler);
+            connections.connect(id, "unit" + id);
+            connections.subscribeUser(id, "police", id);
+        }
+        message = Frames.parse(Frames.send("police", 3, bodySize));
+    }
+
+    @Benchmark
+    public ConnectionsImpl<Frame> sendToChannel() {
+        connections.send("police", message);
+        return connections;
+    }
+}
@@ -0,0 +1,49 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.stomp.Frame;
+import bgu.spl.net.impl.stomp.StompEncoderDecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//builds the client frames the benchmarks feed to the server, as they look on the wire
+public final class Frames {
+
+    private Frames() {
+    }
+
+    public static byte[] connect(String login) {
+        return wire("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:" + login + "\npasscode:pass\n\n");
+    }
+
+    public static byte[] subscribe(String channel, int id) {
+        return wire("SUBSCRIBE\ndestination:" + channel + "\nid:" + id + "\n\n");
+    }
+
+    /**
+     * a SEND with a receipt, headerCount headers in total and a report body of bodySize bytes
+     */
+    public static byte[] send(String channel, int headerCount, int bodySize) {
+        StringBuilder frame = new StringBuilder("SEND\ndestination:/").append(channel).append("\nreceipt:1\n");
+        for (int i = 2; i < headerCount; i++) {
+            frame.append("x-header-").append(i).append(":value ").append(i).append('\n');
+        }
+        frame.append('\n');
+        String report = "user:bench\ncity:Gotham City\nevent name:benchmark\ndate time:1733058000\n"
+                + "general information:\n    active:true\n    forces_arrival_at_scene:false\ndescription:\n";
+        frame.append(report);
+        char[] description = new char[Math.max(0, bodySize - report.length())];
+        Arrays.fill(description, 'd');
+        frame.append(description);
+        return wire(frame.toString());
+    }
+
+    public static Frame parse(byte[] wire) {
+        return new StompEncoderDecoder().decode(ByteBuffer.wrap(wire)).get(0);
+    }
+
+    private static byte[] wire(String frame) {
+        return (frame + "\u0000").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,69 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.stomp.ConnectionsImpl;
+import bgu.spl.net.impl.stomp.Frame;
+import bgu.spl.net.impl.stomp.StompEncoderDecoder;
+import bgu.spl.net.impl.stomp.StompMessagingProtocolImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+//StompMessagingProtocolImpl.process for a SEND: validation, subscriber lookup and the encode-once fan-out to stub handlers
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    @Param({"1", "100", "5000"})
+    public int subscribers;
+
+    @Param({"1000", "100000"})
+    public int registeredUsers;
+
+    @Param({"256", "4096"})
+    public int bodySize;
+
+    @Param({"3"})
+    public int headerCount;
+
+    private StompMessagingProtocolImpl publisher;
+    private Frame send;
+
+    @Setup
+    public void setup() {
+        ConnectionsImpl<Frame> connections = new ConnectionsImpl<>();
+        //users that exist but are not logged in, they make the user map as big as a real roster
+        for (int i = subscribers; i < registeredUsers; i++) {
+            connections.addUser(-1, "offline" + i, "pass", null);
+        }
+        for (int id = 0; id < subscribers; id++) {
+            connections.addHandler(id, new StubConnectionHandler<>(new StompEncoderDecoder()));
+            StompMessagingProtocolImpl protocol = new StompMessagingProtocolImpl();
+            protocol.start(id, connections);
+            protocol.process(Frames.parse(Frames.connect("unit" + id)));
+            protocol.process(Frames.parse(Frames.subscribe("police", id)));
+            if (id == 0) {
+                publisher = protocol;
+            }
+        }
+        send = Frames.parse(Frames.send("police", headerCount, bodySize));
+    }
+
+    @Benchmark
+    public Frame processSend() {
+        return publisher.process(send);
+    }
+}
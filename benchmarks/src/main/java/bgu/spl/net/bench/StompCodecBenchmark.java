@@ -0,0 +1,70 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.stomp.Frame;
+import bgu.spl.net.impl.stomp.StompEncoderDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+//StompEncoderDecoder: bulk decode, the byte by byte compatibility path and encode
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StompCodecBenchmark {
+
+    @Param({"64", "1024", "4096", "65536"})
+    public int bodySize;
+
+    @Param({"2", "8", "32"})
+    public int headerCount;
+
+    private StompEncoderDecoder codec;
+    private ByteBuffer wire;
+    private Frame frame;
+
+    @Setup
+    public void setup() {
+        codec = new StompEncoderDecoder();
+        byte[] bytes = Frames.send("police", headerCount, bodySize);
+        wire = ByteBuffer.wrap(bytes);
+        frame = Frames.parse(bytes);
+    }
+
+    @Benchmark
+    public List<Frame> decode() {
+        return codec.decode(wire.duplicate());
+    }
+
+    @Benchmark
+    public Frame decodeNextByte() {
+        ByteBuffer bytes = wire.duplicate();
+        Frame decoded = null;
+        while (bytes.hasRemaining()) {
+            Frame next = codec.decodeNextByte(bytes.get());
+            if (next != null) {
+                decoded = next;
+            }
+        }
+        return decoded;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(frame);
+    }
+}
@@ -0,0 +1,45 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.srv.ConnectionHandler;
+
+import java.nio.ByteBuffer;
+
+//stands in for a socket: encodes what it is given like the real handlers and only counts the bytes,
+//so the measurements do not include the network and the work is not optimized away
+public class StubConnectionHandler<T> implements ConnectionHandler<T> {
+
+    private final MessageEncoderDecoder<T> encdec;
+    private long frames = 0;
+    private long bytes = 0;
+
+    public StubConnectionHandler(MessageEncoderDecoder<T> encdec) {
+        this.encdec = encdec;
+    }
+
+    @Override
+    public void send(T msg) {
+        frames++;
+        bytes += encdec.encode(msg).length;
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer... frame) {
+        frames++;
+        for (ByteBuffer part : frame) {
+            bytes += part.remaining();
+        }
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+    }
+}
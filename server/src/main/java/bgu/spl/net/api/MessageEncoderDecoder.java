@@ -1,5 +1,10 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +16,28 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * add all the remaining bytes of the buffer to the decoding process.
+     * the default implementation goes byte by byte through {@link #decodeNextByte(byte)},
+     * implementations should override it with a bulk version.
+     *
+     * @param buffer the bytes to decode, the buffer is consumed completely
+     * @return the messages completed by these bytes in the order they arrived (empty if there are none)
+     */
+    default List<T> decode(ByteBuffer buffer) {
+        List<T> messages = Collections.emptyList();
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                if (messages.isEmpty()) {
+                    messages = new ArrayList<>();
+                }
+                messages.add(nextMessage);
+            }
+        }
+        return messages;
+    }
+
     /**
      * encodes the given message to bytes array
      *
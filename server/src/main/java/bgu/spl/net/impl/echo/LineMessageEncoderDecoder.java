@@ -1,8 +1,12 @@
 package bgu.spl.net.impl.echo;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String> {
 
@@ -21,6 +25,36 @@ public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String>
         return null; //not a line yet
     }
 
+    @Override
+    public List<String> decode(ByteBuffer buffer) {
+        //copy the whole chunk after the partial line we already have, then cut lines on every '\n'
+        int chunk = buffer.remaining();
+        if (len + chunk > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, len + chunk));
+        }
+        buffer.get(bytes, len, chunk);
+        int end = len + chunk;
+
+        List<String> lines = Collections.emptyList();
+        int lineStart = 0;
+        for (int i = len; i < end; i++) {
+            if (bytes[i] == '\n') {
+                if (lines.isEmpty()) {
+                    lines = new ArrayList<>();
+                }
+                lines.add(new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8));
+                lineStart = i + 1;
+            }
+        }
+
+        //keep the beginning of the next line for the next call
+        len = end - lineStart;
+        if (lineStart > 0 && len > 0) {
+            System.arraycopy(bytes, lineStart, bytes, 0, len);
+        }
+        return lines;
+    }
+
     @Override
     public byte[] encode(String message) {
         return (message + "\n").getBytes(); //uses utf8 by default
@@ -0,0 +1,79 @@
+package bgu.spl.net.impl.loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+//one simulated field unit: a socket to the server that writes STOMP frames and reads them back whole
+public class LoadClient implements Closeable {
+
+    private final Socket sock;
+    private final InputStream in;
+    private final OutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream(1 << 10);
+
+    public LoadClient(String host, int port) throws IOException {
+        sock = new Socket(host, port);
+        sock.setTcpNoDelay(true);
+        in = new BufferedInputStream(sock.getInputStream());
+        out = new BufferedOutputStream(sock.getOutputStream());
+    }
+
+    public void connect(String login) throws IOException {
+        write("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:" + login + "\npasscode:load\n\n");
+    }
+
+    public void subscribe(String channel, int id, String receipt) throws IOException {
+        write("SUBSCRIBE\ndestination:" + channel + "\nid:" + id + "\nreceipt:" + receipt + "\n\n");
+    }
+
+    public void send(String channel, String body, String receipt) throws IOException {
+        String receiptHeader = receipt == null ? "" : "receipt:" + receipt + "\n";
+        write("SEND\ndestination:/" + channel + "\n" + receiptHeader + "\n" + body);
+    }
+
+    public void disconnect(String receipt) throws IOException {
+        write("DISCONNECT\nreceipt:" + receipt + "\n\n");
+    }
+
+    private void write(String stompFrame) throws IOException {
+        byte[] bytes = stompFrame.getBytes(StandardCharsets.UTF_8);
+        writeLock.lock();
+        try {
+            out.write(bytes);
+            out.write(0);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * blocks until a whole frame arrived. only one thread reads from a client.
+     * @return the frame without the '\0', or null if the server closed the connection
+     */
+    public String readFrame() throws IOException {
+        frame.reset();
+        int read;
+        while ((read = in.read()) > 0) {
+            frame.write(read);
+        }
+        if (read < 0) {
+            return null;
+        }
+        return frame.toString(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sock.close();
+    }
+}
@@ -0,0 +1,337 @@
+package bgu.spl.net.impl.loadgen;
+
+import bgu.spl.net.srv.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a running StompServer (tpc, vthread or reactor, it does not matter to the clients) with simulated field units over real sockets.
+ * Subscribers CONNECT and SUBSCRIBE, publishers also SEND reports and every client reads what the server sends it.
+ * The publish to MESSAGE latency is measured end to end, every report carries the time it was meant to be sent.
+ *
+ * closed loop (the default): each publisher keeps up to --window SENDs waiting for their RECEIPT.
+ * open loop (--rate): the publishers send at a fixed total rate no matter how the server keeps up, and latency
+ * is measured from the planned send time so a stalled server is not hidden (no coordinated omission).
+ *
+ * usage: StompLoadGenerator [--host localhost] [--port 7777] [--publishers 10] [--subscribers 100] [--channels 1]
+ *                           [--rate 0] [--window 1] [--duration 10] [--body 256] [--label name]
+ */
+public class StompLoadGenerator {
+
+    private static final String SENT_NANOS = "sent-nanos:";
+
+    private final Map<String, String> options;
+    private final String host;
+    private final int port;
+    private final int publishers;
+    private final int subscribers;
+    private final int channels;
+    private final long rate;
+    private final int window;
+    private final long durationNanos;
+    private final int bodySize;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final LatencyHistogram receiptLatency = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong(0);
+    private final AtomicLong expectedDeliveries = new AtomicLong(0);
+    private final AtomicLong delivered = new AtomicLong(0);
+    private final AtomicLong receipts = new AtomicLong(0);
+    private final AtomicLong errorFrames = new AtomicLong(0);
+    private final AtomicLong connectionErrors = new AtomicLong(0);
+
+    private final List<LoadClient> clients = new ArrayList<>();
+    private int[] channelMembers;
+    private volatile boolean running = true;
+
+    public StompLoadGenerator(Map<String, String> options) {
+        this.options = options;
+        host = option("host", "localhost");
+        port = Integer.parseInt(option("port", "7777"));
+        publishers = Integer.parseInt(option("publishers", "10"));
+        subscribers = Integer.parseInt(option("subscribers", "100"));
+        channels = Math.max(1, Integer.parseInt(option("channels", "1")));
+        rate = Long.parseLong(option("rate", "0"));
+        window = Math.max(1, Integer.parseInt(option("window", "1")));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "10")));
+        bodySize = Integer.parseInt(option("body", "256"));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                System.out.println("options are given as --name value, got " + args[i]);
+                return;
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        new StompLoadGenerator(options).run();
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    public void run() throws InterruptedException {
+        channelMembers = new int[channels];
+        for (int i = 0; i < publishers + subscribers; i++) {
+            channelMembers[i % channels]++;
+        }
+
+        //log everyone in, like a fleet coming online
+        CountDownLatch ready = new CountDownLatch(publishers + subscribers);
+        List<Publisher> publisherList = new ArrayList<>();
+        long setupStart = System.nanoTime();
+        for (int i = 0; i < publishers + subscribers; i++) {
+            String login = "load-" + runId + "-" + i;
+            String channel = "load" + (i % channels);
+            Publisher publisher = i < publishers ? new Publisher(channel, login) : null;
+            if (publisher != null) {
+                publisherList.add(publisher);
+            }
+            int unit = i;
+            Thread.ofVirtual().name("loadgen-reader-" + i).start(() -> runClient(login, channel, unit, publisher, ready));
+        }
+        if (!ready.await(60, TimeUnit.SECONDS)) {
+            System.out.println("not all clients logged in after 60 seconds, running with the ones that did");
+        }
+        System.out.printf("%s%d clients logged in and subscribed in %d ms, %s loop%n", label(), publishers + subscribers,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - setupStart), rate > 0 ? "open (" + rate + " SEND/s)" : "closed (window " + window + ")");
+
+        long start = System.nanoTime();
+        long deadline = start + durationNanos;
+        List<Thread> publisherThreads = new ArrayList<>();
+        for (int i = 0; i < publisherList.size(); i++) {
+            Publisher publisher = publisherList.get(i);
+            //spread the open loop publishers over one interval so they do not all send at the same moment
+            long offset = rate > 0 ? i * publishers * 1_000_000_000L / rate / Math.max(1, publisherList.size()) : 0;
+            publisherThreads.add(Thread.ofVirtual().name("loadgen-publisher-" + i).start(() -> publisher.run(start + offset, deadline)));
+        }
+
+        long lastSent = 0;
+        long lastDelivered = 0;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(1000);
+            long nowSent = sent.get();
+            long nowDelivered = delivered.get();
+            System.out.printf("%ssent %d/s, delivered %d/s, errors %d%n", label(), nowSent - lastSent, nowDelivered - lastDelivered,
+                    errorFrames.get() + connectionErrors.get());
+            lastSent = nowSent;
+            lastDelivered = nowDelivered;
+        }
+        running = false;
+        for (Thread thread : publisherThreads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        //give the frames still on the way a moment to arrive
+        long graceEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (delivered.get() < expectedDeliveries.get() && System.nanoTime() < graceEnd) {
+            Thread.sleep(50);
+        }
+        report(elapsed);
+        closeClients();
+    }
+
+    private void runClient(String login, String channel, int unit, Publisher publisher, CountDownLatch ready) {
+        boolean counted = false;
+        try (LoadClient client = new LoadClient(host, port)) {
+            synchronized (clients) {
+                clients.add(client);
+            }
+            client.connect(login);
+            String connected = client.readFrame();
+            if (connected == null || !connected.startsWith("CONNECTED")) {
+                errorFrames.incrementAndGet();
+                return;
+            }
+            client.subscribe(channel, unit, "subscribed");
+            String receipt = client.readFrame();
+            if (receipt == null || !receipt.startsWith("RECEIPT")) {
+                errorFrames.incrementAndGet();
+                return;
+            }
+            if (publisher != null) {
+                publisher.client = client;
+            }
+            ready.countDown();
+            counted = true;
+
+            String frame;
+            while ((frame = client.readFrame()) != null) {
+                onFrame(frame, publisher);
+            }
+        } catch (IOException ex) {
+            if (running) {
+                connectionErrors.incrementAndGet();
+            }
+        } finally {
+            if (!counted) {
+                ready.countDown();
+            }
+        }
+    }
+
+    private void onFrame(String frame, Publisher publisher) {
+        long now = System.nanoTime();
+        if (frame.startsWith("MESSAGE")) {
+            int at = frame.indexOf(SENT_NANOS);
+            if (at >= 0) {
+                int end = frame.indexOf('\n', at);
+                long sentNanos = Long.parseLong(frame.substring(at + SENT_NANOS.length(), end < 0 ? frame.length() : end));
+                deliveryLatency.record(now - sentNanos);
+            }
+            delivered.incrementAndGet();
+        } else if (frame.startsWith("RECEIPT")) {
+            receipts.incrementAndGet();
+            if (publisher != null) {
+                publisher.onReceipt(frame, now);
+            }
+        } else if (frame.startsWith("ERROR")) {
+            errorFrames.incrementAndGet();
+        }
+    }
+
+    private class Publisher {
+        private final String channel;
+        private final String login;
+        private final Semaphore inFlight = new Semaphore(window);
+        private final Map<String, Long> sentAt = new ConcurrentHashMap<>();
+        private volatile LoadClient client;
+        private long sequence = 0;
+
+        private Publisher(String channel, String login) {
+            this.channel = channel;
+            this.login = login;
+        }
+
+        private void run(long firstSend, long deadline) {
+            if (client == null) {
+                return; //did not manage to log in
+            }
+            long interval = rate > 0 ? publishers * 1_000_000_000L / rate : 0;
+            long planned = firstSend;
+            try {
+                while (running && System.nanoTime() < deadline) {
+                    if (rate > 0) {
+                        //open loop: wait for the planned time, if we are late send right away and keep the plan
+                        long wait = planned - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        sendReport(planned, null);
+                        planned += interval;
+                    } else {
+                        //closed loop: a new SEND only when one of the window got its receipt
+                        if (!inFlight.tryAcquire(1, TimeUnit.SECONDS)) {
+                            continue;
+                        }
+                        String receipt = login + "-" + sequence;
+                        long now = System.nanoTime();
+                        sentAt.put(receipt, now);
+                        sendReport(now, receipt);
+                    }
+                }
+            } catch (IOException ex) {
+                connectionErrors.incrementAndGet();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void sendReport(long sentNanos, String receipt) throws IOException {
+            sequence++;
+            client.send(channel, report(login, sentNanos), receipt);
+            sent.incrementAndGet();
+            expectedDeliveries.addAndGet(channelMembers[Integer.parseInt(channel.substring(4))]);
+        }
+
+        private void onReceipt(String frame, long now) {
+            int at = frame.indexOf("receipt-id:");
+            if (at < 0) {
+                return;
+            }
+            int end = frame.indexOf('\n', at);
+            String id = frame.substring(at + "receipt-id:".length(), end < 0 ? frame.length() : end).trim();
+            Long sentNanos = sentAt.remove(id);
+            if (sentNanos != null) {
+                receiptLatency.record(now - sentNanos);
+                inFlight.release();
+            }
+        }
+    }
+
+    //a report shaped like the ones the client sends, padded to the requested size
+    private String report(String login, long sentNanos) {
+        StringBuilder body = new StringBuilder(bodySize + 64)
+                .append("user:").append(login).append('\n')
+                .append("city:Load City\n")
+                .append("event name:load test\n")
+                .append("date time:").append(System.currentTimeMillis() / 1000).append('\n')
+                .append("general information:\n    active:true\n    forces_arrival_at_scene:false\n")
+                .append("description:\n")
+                .append(SENT_NANOS).append(sentNanos).append('\n');
+        while (body.length() < bodySize) {
+            body.append('x');
+        }
+        return body.append('\n').toString();
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.printf("%s%d publishers, %d subscribers, %d channels, %d byte reports, %.1f s%n", label(), publishers, subscribers, channels, bodySize, seconds);
+        System.out.printf("  SEND       %d (%.0f/s)%n", sent.get(), sent.get() / seconds);
+        System.out.printf("  MESSAGE    %d of %d expected (%.0f/s), %d missing%n", delivered.get(), expectedDeliveries.get(),
+                delivered.get() / seconds, Math.max(0, expectedDeliveries.get() - delivered.get()));
+        System.out.printf("  errors     %d ERROR frames, %d connection errors%n", errorFrames.get(), connectionErrors.get());
+        printLatency("  publish -> MESSAGE", deliveryLatency);
+        if (rate <= 0) {
+            printLatency("  SEND -> RECEIPT   ", receiptLatency);
+        }
+    }
+
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        System.out.printf("%s  p50 %s  p90 %s  p99 %s  p99.9 %s  max %s  (%d samples)%n", name,
+                millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(90)),
+                millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+                millis(histogram.getMax()), histogram.getCount());
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3fms", nanos / 1e6);
+    }
+
+    private String label() {
+        String label = options.get("label");
+        return label == null ? "" : "[" + label + "] ";
+    }
+
+    private void closeClients() {
+        List<LoadClient> all;
+        synchronized (clients) {
+            all = new ArrayList<>(clients);
+        }
+        for (LoadClient client : all) {
+            try {
+                client.disconnect("bye");
+                client.close();
+            } catch (IOException ex) {
+                //already gone
+            }
+        }
+    }
+}
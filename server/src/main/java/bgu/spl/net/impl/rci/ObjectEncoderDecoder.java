@@ -9,6 +9,9 @@ import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class ObjectEncoderDecoder implements MessageEncoderDecoder<Serializable> {
 
@@ -38,6 +41,38 @@ public class ObjectEncoderDecoder implements MessageEncoderDecoder<Serializable>
         return null;
     }
 
+    @Override
+    public List<Serializable> decode(ByteBuffer buffer) {
+        List<Serializable> results = Collections.emptyList();
+        while (buffer.hasRemaining()) {
+            if (objectBytes == null) { //still reading the length, take as much of it as we have
+                while (buffer.hasRemaining() && lengthBuffer.hasRemaining()) {
+                    lengthBuffer.put(buffer.get());
+                }
+                if (!lengthBuffer.hasRemaining()) {
+                    lengthBuffer.flip();
+                    objectBytes = new byte[lengthBuffer.getInt()];
+                    objectBytesIndex = 0;
+                    lengthBuffer.clear();
+                }
+            } else {
+                //copy the object bytes in one go
+                int count = Math.min(buffer.remaining(), objectBytes.length - objectBytesIndex);
+                buffer.get(objectBytes, objectBytesIndex, count);
+                objectBytesIndex += count;
+            }
+
+            if (objectBytes != null && objectBytesIndex == objectBytes.length) {
+                if (results.isEmpty()) {
+                    results = new ArrayList<>();
+                }
+                results.add(deserializeObject());
+                objectBytes = null;
+            }
+        }
+        return results;
+    }
+
     @Override
     public byte[] encode(Serializable message) {
         return serializeObject(message);
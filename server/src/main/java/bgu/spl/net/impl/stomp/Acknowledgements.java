@@ -0,0 +1,209 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.AckMode;
+import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.metrics.ServerMetrics;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * The messages waiting for an ACK on every subscription that asked for acknowledgements, and the timer that sends
+ * them again: a message is sent again when it was NACKed or when it was not acknowledged within the timeout.
+ * When a connection goes away its unacknowledged messages are kept for a while under the user and the channel,
+ * and the timer sends them again once the user subscribes to the channel again.
+ */
+final class Acknowledgements {
+
+    static final String MAX_IN_FLIGHT_PROPERTY = "stomp.ack.max.inflight";
+    static final String TIMEOUT_MILLIS_PROPERTY = "stomp.ack.timeout.millis";
+    static final String TICK_MILLIS_PROPERTY = "stomp.ack.tick.millis";
+    static final String KEEP_MILLIS_PROPERTY = "stomp.ack.keep.millis";
+
+    private static final LongAdder ACKED = ServerMetrics.get().counter("stomp.ack.acked");
+    private static final LongAdder NACKED = ServerMetrics.get().counter("stomp.ack.nacked");
+    private static final LongAdder UNKNOWN = ServerMetrics.get().counter("stomp.ack.unknown");
+    private static final LongAdder REDELIVERED = ServerMetrics.get().counter("stomp.ack.redelivered");
+    private static final LongAdder GIVEN_UP = ServerMetrics.get().counter("stomp.ack.given.up");
+    private static final LongAdder KEPT = ServerMetrics.get().counter("stomp.ack.kept.for.resubscribe");
+
+    private final int capacity;
+    private final long timeoutMillis;
+    private final long tickMillis;
+    private final long keepMillis;
+    private final IntFunction<ConnectionHandler<?>> handlers;
+    private final Map<Integer, Map<Integer, InFlight>> connections = new ConcurrentHashMap<>();//connectionId, subscriptionId, its table
+    private final Map<String, Kept> kept = new ConcurrentHashMap<>();//user and channel, the unacknowledged messages of a gone connection
+    private volatile ScheduledExecutorService timer; //started by the first subscription that asks for acknowledgements
+
+    Acknowledgements(IntFunction<ConnectionHandler<?>> handlers) {
+        this.handlers = handlers;
+        //a power of two, the tables are rings
+        this.capacity = Integer.highestOneBit(Math.max(1, Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, 1024) * 2 - 1));
+        this.timeoutMillis = Long.getLong(TIMEOUT_MILLIS_PROPERTY, 30_000);
+        this.tickMillis = Long.getLong(TICK_MILLIS_PROPERTY, 100);
+        this.keepMillis = Long.getLong(KEEP_MILLIS_PROPERTY, 600_000);
+    }
+
+    /**
+     * the connection subscribed. a subscription that acknowledges gets a table, and takes over the messages
+     * the user did not acknowledge on the channel before its last connection went away
+     */
+    void subscribed(int connectionId, int subscriptionId, String user, String channel, AckMode mode) {
+        Kept unacked = kept.remove(key(user, channel));
+        if (mode == AckMode.AUTO) {
+            if (unacked != null) {
+                //nothing to track, send them once
+                ConnectionHandler<?> handler = handlers.apply(connectionId);
+                for (ByteBuffer sharedPart : unacked.sharedParts) {
+                    if (handler != null) {
+                        handler.sendEncoded(subscriptionId, StompMessagingProtocolImpl.encodeMessageHead(subscriptionId), sharedPart.duplicate());
+                        REDELIVERED.increment();
+                    }
+                }
+            }
+            return;
+        }
+        //a replay subscribes before it sends the log and again when it joins the channel, the table it started is kept
+        InFlight table = connections.computeIfAbsent(connectionId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(subscriptionId, id -> new InFlight(channel, mode, capacity));
+        if (unacked != null) {
+            //due at once, the next tick sends them
+            for (ByteBuffer sharedPart : unacked.sharedParts) {
+                long messageId = StompMessagingProtocolImpl.messageIdOf(sharedPart);
+                table.add(messageId, StompMessagingProtocolImpl.encodeMessageHead(subscriptionId, messageId), sharedPart, 0);
+            }
+        }
+        startTimer();
+    }
+
+    /**
+     * the client unsubscribed, what it did not acknowledge is dropped
+     */
+    void unsubscribed(int connectionId, int subscriptionId) {
+        Map<Integer, InFlight> tables = connections.get(connectionId);
+        if (tables != null) {
+            tables.remove(subscriptionId);
+        }
+    }
+
+    /**
+     * the connection went away: its unacknowledged messages are kept for the user's next subscription to each channel
+     */
+    void disconnected(int connectionId, String user) {
+        Map<Integer, InFlight> tables = connections.remove(connectionId);
+        if (tables == null || user == null) {
+            return;
+        }
+        long expires = System.currentTimeMillis() + keepMillis;
+        for (InFlight table : tables.values()) {
+            List<ByteBuffer> unacked = table.drain();
+            if (!unacked.isEmpty()) {
+                KEPT.add(unacked.size());
+                kept.merge(key(user, table.getChannel()), new Kept(unacked, expires), (older, newer) -> older.merge(newer, capacity));
+            }
+        }
+    }
+
+    /**
+     * remembers a message sent on a subscription that acknowledges, does nothing for the others
+     */
+    void sent(int connectionId, int subscriptionId, long messageId, ByteBuffer head, ByteBuffer sharedPart) {
+        Map<Integer, InFlight> tables = connections.get(connectionId);
+        InFlight table = tables == null ? null : tables.get(subscriptionId);
+        if (table != null && table.add(messageId, head, sharedPart, System.currentTimeMillis() + timeoutMillis)) {
+            GIVEN_UP.increment();
+        }
+    }
+
+    /**
+     * @return false if no subscription of the connection waits for an acknowledgement of the message
+     */
+    boolean acknowledge(int connectionId, long messageId, boolean accepted) {
+        Map<Integer, InFlight> tables = connections.get(connectionId);
+        boolean found = false;
+        if (tables != null) {
+            //a channel and a wildcard subscription that covers it both get the message, the ack is for both
+            for (InFlight table : tables.values()) {
+                int covered = accepted ? table.ack(messageId) : table.nack(messageId);
+                if (covered > 0) {
+                    (accepted ? ACKED : NACKED).add(covered);
+                    found = true;
+                }
+            }
+        }
+        if (!found) {
+            UNKNOWN.increment();
+        }
+        return found;
+    }
+
+    private void startTimer() {
+        if (timer != null) {
+            return;
+        }
+        synchronized (this) {
+            if (timer == null) {
+                ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "ack-redelivery");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                scheduler.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+                timer = scheduler;
+            }
+        }
+    }
+
+    //sends again what is due, and forgets the kept messages nobody came back for
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            List<ByteBuffer[]> due = new ArrayList<>();
+            for (Map.Entry<Integer, Map<Integer, InFlight>> connection : connections.entrySet()) {
+                ConnectionHandler<?> handler = handlers.apply(connection.getKey());
+                for (Map.Entry<Integer, InFlight> subscription : connection.getValue().entrySet()) {
+                    GIVEN_UP.add(subscription.getValue().takeDue(now, now + timeoutMillis, due));
+                    for (ByteBuffer[] frame : due) {
+                        if (handler != null) {
+                            handler.sendEncodedAsync(subscription.getKey(), frame);//the timer thread never waits for one slow client
+                            REDELIVERED.increment();
+                        }
+                    }
+                    due.clear();
+                }
+            }
+            kept.values().removeIf(unacked -> unacked.expires < now);
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();//the timer must keep running
+        }
+    }
+
+    private static String key(String user, String channel) {
+        return user + '\0' + channel;
+    }
+
+    private static final class Kept {
+        final List<ByteBuffer> sharedParts;
+        final long expires;
+
+        Kept(List<ByteBuffer> sharedParts, long expires) {
+            this.sharedParts = sharedParts;
+            this.expires = expires;
+        }
+
+        //the newest max messages of both
+        Kept merge(Kept newer, int max) {
+            List<ByteBuffer> all = new ArrayList<>(sharedParts);
+            all.addAll(newer.sharedParts);
+            return new Kept(all.size() > max ? new ArrayList<>(all.subList(all.size() - max, all.size())) : all, newer.expires);
+        }
+    }
+}
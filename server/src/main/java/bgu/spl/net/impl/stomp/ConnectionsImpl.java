@@ -1,12 +1,33 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.srv.AckMode;
 import bgu.spl.net.srv.ConnectionHandler;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.DestinationTrie;
+import bgu.spl.net.srv.MessageIds;
+import bgu.spl.net.srv.Publication;
+import bgu.spl.net.srv.RecentMessages;
+import bgu.spl.net.srv.Subscribers;
+import bgu.spl.net.srv.Subscription;
 import bgu.spl.net.srv.User;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import bgu.spl.net.srv.log.ChannelLog;
+import bgu.spl.net.srv.log.EventLog;
+import bgu.spl.net.srv.log.UserLog;
+import bgu.spl.net.srv.metrics.ServerMetrics;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
 import java.util.List;
 import java.util.Map;
 
@@ -14,9 +35,51 @@ import java.util.Map;
 //there will be only one instance of this class
 public class ConnectionsImpl<T> implements Connections<T> {
     private Map<Integer, ConnectionHandler<T>> connections = new ConcurrentHashMap<>();//connectionId, connectionHandler
-    Map<String, Set<Integer>> channelSubscriptions = new ConcurrentHashMap<>();//channel, connectionId
+    //channel, snapshot of its subscribers. replaced (inside compute, so per channel changes do not race) on every subscribe and unsubscribe
+    Map<String, Subscribers> channelSubscriptions = new ConcurrentHashMap<>();
+    //the subscriptions with wildcards (police/*, fire/#), the channels they match are found when a channel publishes
+    private final DestinationTrie wildcards = new DestinationTrie();
+    private final Map<String, RecentMessages> histories = new ConcurrentHashMap<>();//channel, its last messages for late joiners
     private ConcurrentHashMap<String, User<T>> users = new ConcurrentHashMap<>();//username, user.  
-    private AtomicInteger messageId = new AtomicInteger(0);
+    private Map<Integer, User<T>> connectedUsers = new ConcurrentHashMap<>();//connectionId, logged in user. kept in sync with connect/disconnect
+    private final EventLog eventLog = EventLog.fromSystemProperties();//null unless the server was started with -Dstomp.log.dir
+    //after a restart the ids continue after the ones already in the log, so replaying from an id stays meaningful
+    private final MessageIds messageIds = new MessageIds(eventLog == null ? 0 : eventLog.lastMessageId() + 1);
+    //the users and their subscriptions, kept across restarts. null unless the server was started with -Dstomp.state.dir
+    private final UserLog userLog = UserLog.fromSystemProperties();
+    //username, the subscriptions it had when the server stopped. joined again on its next login, without a SUBSCRIBE
+    private final Map<String, List<Subscription>> restoredSubscriptions = new ConcurrentHashMap<>();
+    //how long the subscriptions of a connection that went away without DISCONNECT wait to be resumed, 0 for never
+    static final long SESSION_GRACE_MILLIS = Long.getLong("stomp.session.grace.millis", 60_000);
+    private static final LongAdder SESSIONS_RESUMED = ServerMetrics.get().counter("stomp.sessions.resumed");
+    private static final LongAdder SESSIONS_ABANDONED = ServerMetrics.get().counter("stomp.sessions.abandoned");
+    private static final LongAdder SESSIONS_REDELIVERED = ServerMetrics.get().counter("stomp.sessions.redelivered");
+    private static final LongAdder SESSIONS_EXPIRED = ServerMetrics.get().counter("stomp.sessions.expired");
+    private static final SecureRandom TOKENS = new SecureRandom();
+    private final Map<Integer, String> sessionTokens = new ConcurrentHashMap<>();//connectionId, the token of its session
+    //username, its session whose connection went away. taken over by the next login of the user, with the token or without
+    private final Map<String, Session> detachedSessions = new ConcurrentHashMap<>();
+    private final Map<Integer, Session> resumedSessions = new ConcurrentHashMap<>();//connectionId, the session it resumed until it is restored
+    private volatile ScheduledExecutorService sessionSweeper; //started by the first detached session
+    private final ReentrantLock sessionSweeperLock = new ReentrantLock();
+    //the messages of the subscriptions that acknowledge, until the client does
+    private final Acknowledgements acks = new Acknowledgements(connectionId -> connections.get(connectionId));
+    private static final String HISTORY_OF_PATTERN = "History and replay need a destination without wildcards";
+    private static final long REPLAY_STALL_NANOS = 5_000_000_000L;//how long a replay waits for a client that stopped reading
+
+    public ConnectionsImpl() {
+        ServerMetrics.get().gauge("connections.open", () -> connections.size());
+        ServerMetrics.get().gauge("connections.logged.in", () -> connectedUsers.size());
+        ServerMetrics.get().gauge("channels", () -> channelSubscriptions.size());
+        if (userLog != null) {
+            for (UserLog.Account account : userLog.accounts()) {
+                users.put(account.getUsername(), new User<>(-999, account.getUsername(), account.getPassword(), null));
+                if (!account.getSubscriptions().isEmpty()) {
+                    restoredSubscriptions.put(account.getUsername(), account.getSubscriptions());
+                }
+            }
+        }
+    }
 
 
     @Override
@@ -29,13 +92,31 @@ public class ConnectionsImpl<T> implements Connections<T> {
         return false;
     }
 
+    @Override
+    public boolean sendEncoded(int connectionId, ByteBuffer... frame) {
+        ConnectionHandler<T> connectionHandler = connections.get(connectionId);
+        if (connectionHandler != null) {
+            connectionHandler.sendEncoded(frame);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean sendEncoded(int connectionId, int stream, ByteBuffer... frame) {
+        ConnectionHandler<T> connectionHandler = connections.get(connectionId);
+        if (connectionHandler != null) {
+            connectionHandler.sendEncoded(stream, frame);
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public void send(String channel, T msg) {
-        Set<Integer> subscribers = channelSubscriptions.get(channel);
-        if (subscribers != null) {
-            for (int connectionId : subscribers) {
-                send(connectionId, msg);
-            }
+        Subscribers subscribers = getSubscribers(channel);
+        for (int i = 0; i < subscribers.size(); i++) {
+            send(subscribers.connectionId(i), msg);
         }
     }
 
@@ -52,28 +133,70 @@ public class ConnectionsImpl<T> implements Connections<T> {
     public void disconnect(int connectionId) {
         //remove the handler, the channel subscriptions and log out the user
         connections.remove(connectionId);
-        for (Set<Integer> subscribers : channelSubscriptions.values()) {
-            subscribers.remove(connectionId);
-        }
-        if (users.containsKey(getUsernameById(connectionId))) {
-            users.get(getUsernameById(connectionId)).logOut();
+        User<T> user = connectedUsers.remove(connectionId);
+        String token = sessionTokens.remove(connectionId);
+        acks.disconnected(connectionId, user == null ? null : user.getUsername());
+        if (user != null) {
+            //without DISCONNECT the subscriptions wait for the client to resume, the channels say where it left
+            Session session = token == null ? null : new Session(token, List.copyOf(user.getSubscriptions()), System.currentTimeMillis() + SESSION_GRACE_MILLIS);
+            //only the channels of this connection, a connection that is not logged in has no subscriptions
+            for (String channel : user.getSubscribedChannels()) {
+                long leftVersion = leave(connectionId, channel);
+                if (session != null) {
+                    session.leftVersions.put(channel, leftVersion);
+                }
+            }
+            if (session != null) {
+                detachedSessions.put(user.getUsername(), session);//before the user can log in again
+                startSessionSweeper();
+            }
+            user.logOut();
+            if (session == null && userLog != null) {
+                userLog.loggedOut(user.getUsername());
+            }
         }
     }
 
     @Override
     public boolean isUserSubscribed(String channel, int connectionId) {
         //check if the subscription exists in the map and if the user is subscribed to the channel
-        return channelSubscriptions.containsKey(channel) && users.get(getUsernameById(connectionId)).isSubscribed(channel);
+        User<T> user = connectedUsers.get(connectionId);
+        if (user == null) {
+            return false;
+        }
+        if (channelSubscriptions.containsKey(channel) && user.isSubscribed(channel)) {
+            return true;
+        }
+        //or one of the user's wildcard subscriptions covers it
+        return coveringPattern(user, channel) != null;
+    }
+
+    //the user's wildcard subscription that matches the channel, null if there is none
+    private String coveringPattern(User<T> user, String channel) {
+        for (String subscribed : user.getSubscribedChannels()) {
+            if (DestinationTrie.isPattern(subscribed) && DestinationTrie.matches(subscribed, channel)) {
+                return subscribed;
+            }
+        }
+        return null;
     }
 
     @Override
     public int getSubscriptionId(String channel, int connectionId) {
-        return users.get(getUsernameById(connectionId)).getSubscriptionId(channel);
+        User<T> user = connectedUsers.get(connectionId);
+        String pattern = user.isSubscribed(channel) ? null : coveringPattern(user, channel);
+        return user.getSubscriptionId(pattern != null ? pattern : channel);
     }
 
     @Override
-    public List<Integer> getSubscribedId(String channel) {
-        return new ArrayList<>(channelSubscriptions.get(channel));
+    public Subscribers getSubscribers(String channel) {
+        return wildcards.match(channel, channelSubscribers(channel));
+    }
+
+    //the subscribers of the channel itself, without the wildcard ones. the history versions count these snapshots
+    private Subscribers channelSubscribers(String channel) {
+        Subscribers subscribers = channelSubscriptions.get(channel);
+        return subscribers == null ? Subscribers.EMPTY : subscribers;
     }
 
     @Override
@@ -114,14 +237,169 @@ public class ConnectionsImpl<T> implements Connections<T> {
     @Override
     public void connect(int connectionId,String username) {
         //set the User with username = username to have the new connectionId
-        users.get(username).logIn(connectionId, connections.get(connectionId));
-        
+        User<T> user = users.get(username);
+        user.logIn(connectionId, connections.get(connectionId));
+        connectedUsers.put(connectionId, user);
     }
 
     @Override
     public void addUser(int connectionId, String username, String password, ConnectionHandler<T> connectionHandler) {
         User<T> user = new User<>(connectionId, username, password, connectionHandler);
         users.put(username,user);
+        if (userLog != null) {
+            userLog.userAdded(username, password);
+        }
+    }
+
+    @Override
+    public String startSession(int connectionId) {
+        if (SESSION_GRACE_MILLIS <= 0) {
+            return null;
+        }
+        byte[] random = new byte[16];
+        TOKENS.nextBytes(random);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+        sessionTokens.put(connectionId, token);
+        return token;
+    }
+
+    @Override
+    public boolean resumeSession(int connectionId, String token) {
+        User<T> user = connectedUsers.get(connectionId);
+        Session session = detachedSessions.get(user.getUsername());
+        if (session == null || !session.token.equals(token) || session.expires < System.currentTimeMillis()
+                || !detachedSessions.remove(user.getUsername(), session)) {
+            return false;
+        }
+        resumedSessions.put(connectionId, session);
+        return true;
+    }
+
+    @Override
+    public void endSession(int connectionId) {
+        sessionTokens.remove(connectionId);
+    }
+
+    private void startSessionSweeper() {
+        if (sessionSweeper != null) {
+            return;
+        }
+        sessionSweeperLock.lock();
+        try {
+            if (sessionSweeper == null) {
+                ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "session-expiry");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                long periodMillis = Math.max(1, Math.min(SESSION_GRACE_MILLIS, 1000));
+                scheduler.scheduleWithFixedDelay(this::expireSessions, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+                sessionSweeper = scheduler;
+            }
+        } finally {
+            sessionSweeperLock.unlock();
+        }
+    }
+
+    //ends the detached sessions nobody came back for: the login is over, its subscriptions leave the user log
+    private void expireSessions() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Session> detached : detachedSessions.entrySet()) {
+                if (detached.getValue().expires >= now) {
+                    continue;
+                }
+                //inside compute: a login of the user waits for it in restoreSubscriptions, before it can subscribe again
+                detachedSessions.computeIfPresent(detached.getKey(), (username, session) -> {
+                    User<T> user = users.get(username);
+                    if (session != detached.getValue() || (user != null && user.isLoggedIn())) {
+                        return session; //taken over, or its user is logging in and ends it itself
+                    }
+                    SESSIONS_EXPIRED.increment();
+                    if (userLog != null) {
+                        userLog.loggedOut(username);
+                    }
+                    return null;
+                });
+            }
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();//the sweeper must keep running
+        }
+    }
+
+    @Override
+    public int restoreSubscriptions(int connectionId) {
+        User<T> user = connectedUsers.get(connectionId);
+        if (user == null) {
+            return 0;
+        }
+        Session resumed = resumedSessions.remove(connectionId);
+        Session abandoned = detachedSessions.remove(user.getUsername());
+        if (abandoned != null) {
+            //a login that did not resume it: the old login ended after all
+            SESSIONS_ABANDONED.increment();
+            if (userLog != null) {
+                userLog.loggedOut(user.getUsername());
+            }
+        }
+        if (resumed != null) {
+            SESSIONS_RESUMED.increment();
+            for (Subscription subscription : resumed.subscriptions) {
+                //the client's own subscriptions, still in the user log
+                user.subscribe(subscription);
+                Subscribers joined = join(connectionId, subscription);
+                Long leftVersion = resumed.leftVersions.get(subscription.getDestination());
+                if (leftVersion != null && !DestinationTrie.isPattern(subscription.getDestination())) {
+                    sendMissed(connectionId, subscription, leftVersion, joined.getVersion());
+                }
+            }
+            return resumed.subscriptions.size();
+        }
+        List<Subscription> subscriptions = restoredSubscriptions.remove(user.getUsername());
+        if (subscriptions == null) {
+            return 0;
+        }
+        for (Subscription subscription : subscriptions) {
+            //already in the user log, only the live state is built again
+            user.restore(subscription);
+            join(connectionId, subscription);
+        }
+        return subscriptions.size();
+    }
+
+    //the messages the channel's history kept from while the session was away, sent like live ones
+    private void sendMissed(int connectionId, Subscription subscription, long leftVersion, long joinedVersion) {
+        String channel = subscription.getDestination();
+        int subscriptionId = subscription.getId();
+        for (ByteBuffer sharedPart : recentMessages(channel).missedBetween(leftVersion, joinedVersion, Integer.MAX_VALUE)) {
+            if (!isSelected(subscription.getSelector(), channel, sharedPart)) {
+                continue;
+            }
+            sendPast(connectionId, subscriptionId, subscription.getAckMode(), sharedPart);
+            SESSIONS_REDELIVERED.increment();
+        }
+    }
+
+    //a message from the channel's history or event log, sent like a live one:
+    //a subscription that acknowledges gets the ack header and the message waits for its ACK
+    private void sendPast(int connectionId, int subscriptionId, AckMode ackMode, ByteBuffer sharedPart) {
+        if (ackMode == AckMode.AUTO) {
+            sendEncoded(connectionId, subscriptionId, StompMessagingProtocolImpl.encodeMessageHead(subscriptionId), sharedPart);
+        } else {
+            long messageId = StompMessagingProtocolImpl.messageIdOf(sharedPart);
+            sendForAck(connectionId, subscriptionId, messageId, StompMessagingProtocolImpl.encodeMessageHead(subscriptionId, messageId), sharedPart);
+        }
+    }
+
+    //a subscription restored after a restart gives way to one the client makes itself on its channel or with its id
+    private void replaceRestored(int connectionId, String channel, int subscriptionId) {
+        User<T> user = connectedUsers.get(connectionId);
+        if (user.isSubscribed(channel) && user.isRestored(user.getSubscriptionId(channel))) {
+            unsubscribe(connectionId, user.getSubscriptionId(channel));
+        }
+        if (user.isRestored(subscriptionId)) {
+            unsubscribe(connectionId, subscriptionId);
+        }
     }
 
     @Override
@@ -131,55 +409,261 @@ public class ConnectionsImpl<T> implements Connections<T> {
 
     @Override
     public String subscribeUser(int connectionId, String channel, int subscriptionId) {
-        String username = getUsernameById(connectionId);
-        if (channelSubscriptions.containsKey(channel)) {  
-            //the channel exists. check if the user is already subscribed to the channel
-            if (users.get(username).isSubscribed(channel)) {
-                //the user is already subscribed to the channel
-                return "The user is already subscribed to the channel";
-            } else {
-                //the user is not subscribed to the channel
-                users.get(username).subscribe(channel, subscriptionId);
-                channelSubscriptions.get(channel).add(connectionId);
-            }
-        }else{
-            //the channel does not exist, add it to the map with subscriptionId
-            users.get(username).subscribe(channel, subscriptionId);
-            channelSubscriptions.put(channel, ConcurrentHashMap.newKeySet());//create a new set for the channel
-            channelSubscriptions.get(channel).add(connectionId);
+        return subscribeUser(connectionId, channel, subscriptionId, AckMode.AUTO, null);
+    }
+
+    @Override
+    public String subscribeUser(int connectionId, String channel, int subscriptionId, AckMode ackMode, String selector) {
+        String error = subscriptionError(connectionId, channel, subscriptionId);
+        if (error.isEmpty()) {
+            join(connectionId, channel, subscriptionId, ackMode, selector);
+        }
+        return error;
+    }
+
+    @Override
+    public String subscribeUser(int connectionId, String channel, int subscriptionId, AckMode ackMode, String selector, int recentMessages) {
+        String error = subscriptionError(connectionId, channel, subscriptionId);
+        if (!error.isEmpty()) {
+            return error;
+        }
+        if (DestinationTrie.isPattern(channel)) {
+            return HISTORY_OF_PATTERN;
+        }
+        //join first: the recent messages published before it are in the history, the ones after it come live
+        Subscribers joined = join(connectionId, channel, subscriptionId, ackMode, selector);
+        for (ByteBuffer sharedPart : recentMessages(channel).missedBy(joined.getVersion(), recentMessages)) {
+            if (isSelected(selector, channel, sharedPart)) {
+                sendPast(connectionId, subscriptionId, ackMode, sharedPart);
+            }
+        }
+        return "";
+    }
+
+    private String subscriptionError(int connectionId, String channel, int subscriptionId) {
+        replaceRestored(connectionId, channel, subscriptionId);
+        User<T> user = connectedUsers.get(connectionId);
+        if (user.isSubscribed(channel)) {
+            //the user is already subscribed to the channel
+            return "The user is already subscribed to the channel";
+        }
+        if (user.isSubscriptionIdUsed(subscriptionId)) {
+            //the id names one subscription of the connection, UNSUBSCRIBE could not tell two apart
+            return "The subscription id is already used by another subscription";
+        }
+        if (!DestinationTrie.isValidPattern(channel)) {
+            return "A # wildcard must be the last segment of the destination";
+        }
+        return "";
+    }
+
+    //adds the subscription to the user and to the channel, creating the channel the first time
+    private Subscribers join(int connectionId, String channel, int subscriptionId, AckMode ackMode, String selector) {
+        Subscription subscription = new Subscription(channel, subscriptionId, ackMode, selector);
+        User<T> user = connectedUsers.get(connectionId);
+        user.subscribe(subscription);
+        if (userLog != null) {
+            userLog.subscribed(user.getUsername(), subscription);
+        }
+        return join(connectionId, subscription);
+    }
+
+    //adds a subscription the user already has to the channel
+    private Subscribers join(int connectionId, Subscription subscription) {
+        String channel = subscription.getDestination();
+        int subscriptionId = subscription.getId();
+        AckMode ackMode = subscription.getAckMode();
+        String selector = subscription.getSelector();
+        User<T> user = connectedUsers.get(connectionId);
+        //the table is there before the first live message is sent
+        acks.subscribed(connectionId, subscriptionId, user.getUsername(), channel, ackMode);
+        if (DestinationTrie.isPattern(channel)) {
+            wildcards.subscribe(channel, connectionId, subscriptionId, ackMode, selector);
+            return Subscribers.EMPTY;//there is no channel, and no history to join
+        }
+        return channelSubscriptions.compute(channel,
+                (key, subscribers) -> (subscribers == null ? Subscribers.EMPTY : subscribers).with(connectionId, subscriptionId, ackMode, selector));
+    }
+
+    //takes the connection out of the channel, or out of the wildcard subscription
+    //@return the version of the channel's snapshot without it, -1 for a wildcard subscription
+    private long leave(int connectionId, String channel) {
+        if (DestinationTrie.isPattern(channel)) {
+            wildcards.unsubscribe(channel, connectionId);
+            return -1;
+        }
+        Subscribers left = channelSubscriptions.computeIfPresent(channel, (key, subscribers) -> subscribers.without(connectionId));
+        return left == null ? -1 : left.getVersion();
+    }
+
+    private RecentMessages recentMessages(String channel) {
+        return histories.computeIfAbsent(channel, RecentMessages::forChannel);
+    }
+
+    @Override
+    public String subscribeUser(int connectionId, String channel, int subscriptionId, AckMode ackMode, String selector, long fromMessageId, long sinceMillis) {
+        replaceRestored(connectionId, channel, subscriptionId);
+        User<T> user = connectedUsers.get(connectionId);
+        if (DestinationTrie.isPattern(channel)) {
+            String error = subscriptionError(connectionId, channel, subscriptionId);
+            return error.isEmpty() ? HISTORY_OF_PATTERN : error;
+        }
+        if (eventLog == null || user.isSubscribed(channel) || user.isSubscriptionIdUsed(subscriptionId)) {
+            return subscribeUser(connectionId, channel, subscriptionId, ackMode, selector);//nothing to replay, or an error the plain subscribe reports
+        }
+        ChannelLog log = eventLog.channel(channel);
+        ConnectionHandler<T> handler = connections.get(connectionId);
+        ChannelLog.Cursor cursor = log.cursor(fromMessageId, sinceMillis);
+        if (ackMode != AckMode.AUTO) {
+            //the table is there before the first replayed message, the replay waits for ACKs like live messages
+            acks.subscribed(connectionId, subscriptionId, user.getUsername(), channel, ackMode);
+        }
+
+        //the history is sent without the channel lock, the publishers of the channel are not held up by it
+        boolean caughtUp = cursor.read(sharedPart -> !isSelected(selector, channel, sharedPart) || replayWhenWritable(handler, connectionId, subscriptionId, ackMode, sharedPart));
+        //publish() appends and takes the subscribers under the lock, so each message published from here on
+        //is either still in the log for the cursor or goes to the new subscriber live, never both.
+        //under the lock the few messages appended since the pass above are only copied, nothing is written to the client
+        List<ByteBuffer> tail = new ArrayList<>();
+        String error;
+        log.lock();
+        try {
+            if (caughtUp) {
+                cursor.read(sharedPart -> tail.add(sharedPart));
+            }
+            error = subscribeUser(connectionId, channel, subscriptionId, ackMode, selector);
+        } finally {
+            log.unlock();
+        }
+        if (!error.isEmpty()) {
+            return error;
+        }
+        //may reach the client after a live message published meanwhile, each message still comes once
+        for (ByteBuffer sharedPart : tail) {
+            if (isSelected(selector, channel, sharedPart)) {
+                sendPast(connectionId, subscriptionId, ackMode, sharedPart);
+            }
         }
         return "";
-        
+    }
+
+    //history and replayed messages go through the selector too, their report is parsed from the shared part
+    private static boolean isSelected(String selector, String channel, ByteBuffer sharedPart) {
+        return selector == null || Selector.forText(selector).matches(channel, StompMessagingProtocolImpl.reportOf(sharedPart));
+    }
+
+    //waits while the client's outbound queue is full, so a long replay is not refused by the high-water mark.
+    //a client that does not read at all gets the rest of the channel live only
+    private boolean replayWhenWritable(ConnectionHandler<T> handler, int connectionId, int subscriptionId, AckMode ackMode, ByteBuffer sharedPart) {
+        long deadline = System.nanoTime() + REPLAY_STALL_NANOS;
+        while (handler.isBackpressured()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            LockSupport.parkNanos(1_000_000);
+        }
+        sendPast(connectionId, subscriptionId, ackMode, sharedPart);
+        return true;
+    }
+
+    @Override
+    public Publication publish(String channel, LongFunction<ByteBuffer> encodeSharedPart) {
+        return publish(channel, 1, encodeSharedPart);
+    }
+
+    @Override
+    public Publication publish(String channel, int count, LongFunction<ByteBuffer> encodeSharedPart) {
+        ByteBuffer[] sharedParts = new ByteBuffer[count];
+        if (eventLog == null) {
+            long firstId = messageIds.reserve(channel, count);//the ids of the whole batch at once
+            for (int i = 0; i < count; i++) {
+                sharedParts[i] = encodeSharedPart.apply(firstId + i);
+            }
+            return deliver(channel, sharedParts, firstId);
+        }
+        ChannelLog log = eventLog.channel(channel);
+        log.lock();
+        try {
+            //under the log lock, so the log gets the ids of the channel in order
+            long firstId = messageIds.reserve(channel, count);
+            long timestamp = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                sharedParts[i] = encodeSharedPart.apply(firstId + i);
+                try {
+                    log.append(firstId + i, timestamp, sharedParts[i]);
+                } catch (IOException ex) {
+                    ex.printStackTrace();//the message still goes out live
+                }
+            }
+            return deliver(channel, sharedParts, firstId);
+        } finally {
+            log.unlock();
+        }
+    }
+
+    private Publication deliver(String channel, ByteBuffer[] sharedParts, long firstMessageId) {
+        //kept before the subscribers are taken: a subscriber joining meanwhile either is in the snapshot
+        //or finds the messages in the history, and the recorded snapshot version tells it which
+        RecentMessages recent = recentMessages(channel);
+        long[] sequences = new long[sharedParts.length];
+        for (int i = 0; i < sharedParts.length; i++) {
+            sequences[i] = recent.add(sharedParts[i]);
+        }
+        Subscribers subscribers = channelSubscribers(channel);
+        for (long sequence : sequences) {
+            recent.delivered(sequence, subscribers.getVersion());
+        }
+        return new Publication(sharedParts, firstMessageId, wildcards.match(channel, subscribers));
     }
 
     @Override
-    public int getMessageId() {
-        return messageId.get();
+    public boolean sendForAck(int connectionId, int subscriptionId, long messageId, ByteBuffer head, ByteBuffer sharedPart) {
+        ConnectionHandler<T> connectionHandler = connections.get(connectionId);
+        if (connectionHandler == null) {
+            return false;
+        }
+        //kept before it is sent, a quick ACK always finds it
+        acks.sent(connectionId, subscriptionId, messageId, head, sharedPart);
+        connectionHandler.sendEncoded(subscriptionId, head.duplicate(), sharedPart.duplicate());
+        return true;
+    }
 
+    @Override
+    public boolean acknowledge(int connectionId, long messageId, boolean accepted) {
+        return acks.acknowledge(connectionId, messageId, accepted);
     }
 
     @Override
-    public int incrementMessageId() {
-        return messageId.incrementAndGet();
+    public long reserveMessageIds(String channel, int count) {
+        return messageIds.reserve(channel, count);
     }
 
     @Override
     public boolean unsubscribe(int connectionId, int subscribeId) {
-        String response = users.get(getUsernameById(connectionId)).unsubscribe(subscribeId);
+        User<T> user = connectedUsers.get(connectionId);
+        String response = user.unsubscribe(subscribeId);//the channel, found by the id without a scan
         if (response == null) {
             return false;
         }
-        channelSubscriptions.get(response).remove(connectionId);
+        leave(connectionId, response);
+        acks.unsubscribed(connectionId, subscribeId);
+        if (userLog != null) {
+            userLog.unsubscribed(user.getUsername(), subscribeId);
+        }
         return true;
     }
 
-    
-    private String getUsernameById(int connectionId) {
-        for (User<T> user : users.values()) {
-            if (user.getConnectionId() == connectionId) {
-                return user.getUsername();
-            }
+    //a login whose connection went away without DISCONNECT
+    private static final class Session {
+        final String token;
+        final List<Subscription> subscriptions;
+        final long expires;
+        final Map<String, Long> leftVersions = new HashMap<>();//channel, the version of its snapshot after the connection left
+
+        Session(String token, List<Subscription> subscriptions, long expires) {
+            this.token = token;
+            this.subscriptions = subscriptions;
+            this.expires = expires;
         }
-        return null;
     }
 }
@@ -0,0 +1,174 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An emergency report as the client sends it in a SEND body:
+ * <pre>
+ * user:&lt;user&gt;
+ * city:&lt;city&gt;
+ * event name:&lt;name&gt;
+ * date time:&lt;epoch seconds&gt;
+ * general information:
+ *     active:true
+ *     forces_arrival_at_scene:false
+ * description:
+ * &lt;description, to the end of the body&gt;
+ * </pre>
+ */
+final class EventReport {
+
+    final String user;
+    final String city;
+    final String eventName;
+    final long dateTime;
+    final boolean active;
+    final boolean forcesArrivalAtScene;
+    //the description stays bytes in the body until someone reads it, most reports are never asked for it
+    private final byte[] body;
+    private final int descriptionOffset;
+    private final int descriptionLength;
+    private String description;
+
+    private EventReport(String user, String city, String eventName, long dateTime, boolean active,
+            boolean forcesArrivalAtScene, byte[] body, int descriptionOffset, int descriptionLength) {
+        this.user = user;
+        this.city = city;
+        this.eventName = eventName;
+        this.dateTime = dateTime;
+        this.active = active;
+        this.forcesArrivalAtScene = forcesArrivalAtScene;
+        this.body = body;
+        this.descriptionOffset = descriptionOffset;
+        this.descriptionLength = descriptionLength;
+    }
+
+    /**
+     * @return the description, decoded the first time it is asked for
+     */
+    String description() {
+        String text = description;
+        if (text == null) {
+            text = new String(body, descriptionOffset, descriptionLength, StandardCharsets.UTF_8);
+            description = text;
+        }
+        return text;
+    }
+
+    int descriptionLength() {
+        return descriptionLength;
+    }
+
+    /**
+     * @return the same report with its description copied out of the body, so keeping it does not keep the whole frame
+     */
+    EventReport detached() {
+        byte[] copy = Arrays.copyOfRange(body, descriptionOffset, descriptionOffset + descriptionLength);
+        return new EventReport(user, city, eventName, dateTime, active, forcesArrivalAtScene, copy, 0, copy.length);
+    }
+
+    /**
+     * Reads the lines before the description straight from the bytes, only the names are decoded.
+     * @return the report in the body, null if the body is not a report (no user, event name or date time)
+     */
+    static EventReport parse(byte[] body, int offset, int length) {
+        int end = offset + length;
+        String user = null;
+        String city = "";
+        String eventName = null;
+        long dateTime = 0;
+        boolean hasDateTime = false;
+        boolean active = false;
+        boolean forcesArrivalAtScene = false;
+        int descriptionOffset = end;
+        int descriptionEnd = end;
+        int lineStart = offset;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && body[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int line = lineStart;
+            lineStart = lineEnd + 1;
+            int colon = line;
+            while (colon < lineEnd && body[colon] != ':') {
+                colon++;
+            }
+            if (colon == lineEnd) {
+                continue;
+            }
+            //the general information lines are indented, the keys are unique anyway
+            int keyStart = skipSpaces(body, line, colon);
+            int keyEnd = trimSpaces(body, keyStart, colon);
+            int value = colon + 1;
+            if (is(body, keyStart, keyEnd, "user")) {
+                user = new String(body, value, lineEnd - value, StandardCharsets.UTF_8);
+            } else if (is(body, keyStart, keyEnd, "city")) {
+                city = new String(body, value, lineEnd - value, StandardCharsets.UTF_8);
+            } else if (is(body, keyStart, keyEnd, "event name")) {
+                eventName = new String(body, value, lineEnd - value, StandardCharsets.UTF_8);
+            } else if (is(body, keyStart, keyEnd, "date time")) {
+                int digits = skipSpaces(body, value, lineEnd);
+                int digitsEnd = trimSpaces(body, digits, lineEnd);
+                hasDateTime = digits < digitsEnd;
+                try {
+                    dateTime = hasDateTime ? Long.parseLong(new String(body, digits, digitsEnd - digits, StandardCharsets.US_ASCII)) : 0;
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+            } else if (is(body, keyStart, keyEnd, "active")) {
+                active = isTrue(body, value, lineEnd);
+            } else if (is(body, keyStart, keyEnd, "forces_arrival_at_scene")) {
+                forcesArrivalAtScene = isTrue(body, value, lineEnd);
+            } else if (is(body, keyStart, keyEnd, "description")) {
+                //the rest of the body, whatever it holds
+                descriptionOffset = Math.min(skipSpaces(body, lineStart, end), end);
+                descriptionEnd = trimSpaces(body, descriptionOffset, end);
+                break;
+            }
+        }
+        if (user == null || eventName == null || !hasDateTime) {
+            return null;
+        }
+        return new EventReport(user, city, eventName, dateTime, active, forcesArrivalAtScene,
+                body, descriptionOffset, descriptionEnd - descriptionOffset);
+    }
+
+    //the first index in [from, to) that is not white space, to if there is none
+    private static int skipSpaces(byte[] bytes, int from, int to) {
+        while (from < to && isSpace(bytes[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    //the end of [from, to) without the white space at its end
+    private static int trimSpaces(byte[] bytes, int from, int to) {
+        while (to > from && isSpace(bytes[to - 1])) {
+            to--;
+        }
+        return to;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '\f' || b == 0x0B;
+    }
+
+    private static boolean is(byte[] bytes, int from, int to, String key) {
+        if (to - from != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (bytes[from + i] != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isTrue(byte[] bytes, int from, int to) {
+        int start = skipSpaces(bytes, from, to);
+        return is(bytes, start, trimSpaces(bytes, start, to), "true");
+    }
+}
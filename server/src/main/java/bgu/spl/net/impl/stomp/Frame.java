@@ -0,0 +1,146 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//a STOMP frame: the command, the headers in the order they appeared and the body as a slice of the received bytes
+public class Frame {
+
+    public enum Command {
+        //client frames
+        CONNECT, STOMP, SEND, SUBSCRIBE, UNSUBSCRIBE, ACK, NACK, BEGIN, COMMIT, ABORT, DISCONNECT,
+        //server frames
+        CONNECTED, MESSAGE, RECEIPT, ERROR,
+        //anything else
+        UNKNOWN;
+
+        private static final Command[] KNOWN = Arrays.copyOf(values(), values().length - 1);
+        private final byte[] name = name().getBytes(StandardCharsets.US_ASCII);
+
+        //find the command written in bytes[from, to) without creating a string
+        static Command of(byte[] bytes, int from, int to) {
+            for (Command command : KNOWN) {
+                byte[] name = command.name;
+                if (name.length == to - from) {
+                    int i = 0;
+                    while (i < name.length && name[i] == bytes[from + i]) {
+                        i++;
+                    }
+                    if (i == name.length) {
+                        return command;
+                    }
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+    private static final byte[] NO_BODY = new byte[0];
+
+    private final Command command;
+    private String[] headers = new String[8]; //name, value, name, value...
+    private int headerCount = 0;
+    private byte[] body = NO_BODY;
+    private int bodyOffset = 0;
+    private int bodyLength = 0;
+    private byte[] raw = null; //the bytes this frame was parsed from, only kept for error reports
+    private int rawLength = 0;
+
+    public Frame(Command command) {
+        this.command = command;
+    }
+
+    /*package*/ Frame(Command command, byte[] raw, int rawLength) {
+        this.command = command;
+        this.raw = raw;
+        this.rawLength = rawLength;
+    }
+
+    public Command getCommand() {
+        return command;
+    }
+
+    public Frame addHeader(String name, String value) {
+        if (headerCount * 2 == headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        headers[headerCount * 2] = name;
+        headers[headerCount * 2 + 1] = value;
+        headerCount++;
+        return this;
+    }
+
+    /**
+     * @return the value of the first header with this name (STOMP 1.2 ignores repeated headers) or null if there is none
+     */
+    public String getHeader(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (headers[i * 2].equals(name)) {
+                return headers[i * 2 + 1];
+            }
+        }
+        return null;
+    }
+
+    public boolean hasHeader(String name) {
+        return getHeader(name) != null;
+    }
+
+    public int getHeaderCount() {
+        return headerCount;
+    }
+
+    public String getHeaderName(int index) {
+        return headers[index * 2];
+    }
+
+    public String getHeaderValue(int index) {
+        return headers[index * 2 + 1];
+    }
+
+    public Frame setBody(byte[] bytes, int offset, int length) {
+        this.body = bytes;
+        this.bodyOffset = offset;
+        this.bodyLength = length;
+        return this;
+    }
+
+    public Frame setBody(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return setBody(bytes, 0, bytes.length);
+    }
+
+    //the body bytes are shared, callers must not modify them
+    public byte[] getBodyBytes() {
+        return body;
+    }
+
+    public int getBodyOffset() {
+        return bodyOffset;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    public String getBody() {
+        return new String(body, bodyOffset, bodyLength, StandardCharsets.UTF_8);
+    }
+
+    //the command and headers as they are written on the wire, up to and including the empty line before the body
+    /*package*/ String headerSection() {
+        StringBuilder builder = new StringBuilder(command.name()).append('\n');
+        for (int i = 0; i < headerCount; i++) {
+            builder.append(headers[i * 2]).append(':').append(headers[i * 2 + 1]).append('\n');
+        }
+        return builder.append('\n').toString();
+    }
+
+    @Override
+    public String toString() {
+        if (raw != null) {
+            return new String(raw, 0, rawLength, StandardCharsets.UTF_8);
+        }
+        return headerSection() + getBody();
+    }
+}
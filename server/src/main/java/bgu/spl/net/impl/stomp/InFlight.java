@@ -0,0 +1,283 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.AckMode;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The messages sent on one subscription (ack:client or ack:client-individual) that were not acknowledged yet,
+ * in the order they were sent: a ring of at most capacity sends, indexed by message id.
+ * When a new send would not fit, the oldest unacknowledged message is given up, so a client that never acknowledges
+ * costs a fixed amount of memory. A message that is sent again moves to the end of the ring with a new deadline,
+ * which keeps the deadlines in ring order (NACKed messages aside) and lets the timer look only at the start of the ring.
+ */
+final class InFlight {
+
+    private final String channel;
+    private final AckMode mode;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int mask;
+    //per ring slot. a null part is a message that was acknowledged or moved to the end
+    private final long[] messageIds;
+    private final ByteBuffer[] heads;
+    private final ByteBuffer[] parts;
+    private final long[] deadlines;
+    private long first = 0; //the ring holds the positions first..end-1, a position is its slot & mask
+    private long end = 0;
+    private final PositionIndex index;
+    private boolean nacked = false; //some messages before the end are due now, the timer has to look at all of them
+
+    /**
+     * @param capacity how many sends the ring holds, a power of two
+     */
+    InFlight(String channel, AckMode mode, int capacity) {
+        this.channel = channel;
+        this.mode = mode;
+        this.mask = capacity - 1;
+        this.messageIds = new long[capacity];
+        this.heads = new ByteBuffer[capacity];
+        this.parts = new ByteBuffer[capacity];
+        this.deadlines = new long[capacity];
+        this.index = new PositionIndex(capacity * 2);
+    }
+
+    String getChannel() {
+        return channel;
+    }
+
+    AckMode getMode() {
+        return mode;
+    }
+
+    /**
+     * remembers a message sent on the subscription until it is acknowledged or its deadline passes
+     * @return true if the oldest unacknowledged message was given up to make room for it
+     */
+    boolean add(long messageId, ByteBuffer head, ByteBuffer sharedPart, long deadline) {
+        lock.lock();
+        try {
+            return append(messageId, head, sharedPart, deadline);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * acknowledges the message, and with ack:client every message sent before it
+     * @return how many messages it acknowledged, 0 if the message is not waiting for an acknowledgement
+     */
+    int ack(long messageId) {
+        lock.lock();
+        try {
+            long position = index.get(messageId);
+            if (position < 0) {
+                return 0;
+            }
+            int acked = 0;
+            for (long p = mode == AckMode.CLIENT ? first : position; p <= position; p++) {
+                if (parts[slot(p)] != null) {
+                    remove(p);
+                    acked++;
+                }
+            }
+            skipRemoved();
+            return acked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * makes the message, and with ack:client every message sent before it, due for sending again now
+     * @return how many messages it covered, 0 if the message is not waiting for an acknowledgement
+     */
+    int nack(long messageId) {
+        lock.lock();
+        try {
+            long position = index.get(messageId);
+            if (position < 0) {
+                return 0;
+            }
+            int nacks = 0;
+            for (long p = mode == AckMode.CLIENT ? first : position; p <= position; p++) {
+                if (parts[slot(p)] != null) {
+                    deadlines[slot(p)] = 0;
+                    nacks++;
+                }
+            }
+            nacked = true;
+            return nacks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * takes the messages whose deadline passed (or that were NACKed) and puts them back at the end with the next deadline
+     * @param due where the frames to send again are added, each as the parts of one write
+     * @return how many oldest messages were given up to make room while moving them
+     */
+    int takeDue(long now, long nextDeadline, List<ByteBuffer[]> due) {
+        lock.lock();
+        try {
+            int givenUp = 0;
+            long scanEnd = end; //the messages moved to the end are not looked at again
+            boolean scanAll = nacked;
+            nacked = false;
+            for (long p = first; p < scanEnd && p >= first; p++) {
+                int slot = slot(p);
+                if (parts[slot] == null) {
+                    continue;
+                }
+                if (deadlines[slot] > now) {
+                    if (scanAll) {
+                        continue;
+                    }
+                    break; //the rest of the ring has later deadlines
+                }
+                long messageId = messageIds[slot];
+                ByteBuffer head = heads[slot];
+                ByteBuffer sharedPart = parts[slot];
+                due.add(new ByteBuffer[]{head.duplicate(), sharedPart.duplicate()});
+                remove(p);
+                if (append(messageId, head, sharedPart, nextDeadline)) {
+                    givenUp++;
+                }
+            }
+            skipRemoved();
+            return givenUp;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * empties the table
+     * @return the shared parts of the messages that were not acknowledged, oldest send first
+     */
+    List<ByteBuffer> drain() {
+        lock.lock();
+        try {
+            List<ByteBuffer> unacked = new ArrayList<>();
+            for (long p = first; p < end; p++) {
+                if (parts[slot(p)] != null) {
+                    unacked.add(parts[slot(p)]);
+                    remove(p);
+                }
+            }
+            first = end;
+            return unacked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //the caller holds the lock
+    private boolean append(long messageId, ByteBuffer head, ByteBuffer sharedPart, long deadline) {
+        boolean givenUp = false;
+        long sent = index.get(messageId);
+        if (sent >= 0) {
+            //sent again before it was acknowledged (history overlapping the live messages, a kept message on resubscribe):
+            //the newer send replaces it, the index never points two slots at one id
+            remove(sent);
+        }
+        skipRemoved();
+        if (end - first > mask) {
+            //full: give up the oldest
+            remove(first);
+            skipRemoved();
+            givenUp = true;
+        }
+        int slot = slot(end);
+        messageIds[slot] = messageId;
+        heads[slot] = head;
+        parts[slot] = sharedPart;
+        deadlines[slot] = deadline;
+        index.put(messageId, end);
+        end++;
+        return givenUp;
+    }
+
+    private void remove(long position) {
+        int slot = slot(position);
+        index.remove(messageIds[slot]);
+        heads[slot] = null;
+        parts[slot] = null;
+    }
+
+    private void skipRemoved() {
+        while (first < end && parts[slot(first)] == null) {
+            first++;
+        }
+    }
+
+    private int slot(long position) {
+        return (int) (position & mask);
+    }
+
+    /**
+     * message id to ring position, open addressing with linear probing: two arrays and no boxing.
+     * sized to twice the ring, so it is never more than half full
+     */
+    private static final class PositionIndex {
+        private static final long FREE = Long.MIN_VALUE;
+        private final long[] keys;
+        private final long[] values;
+        private final int mask;
+
+        PositionIndex(int capacity) {
+            keys = new long[capacity];
+            values = new long[capacity];
+            mask = capacity - 1;
+            Arrays.fill(keys, FREE);
+        }
+
+        long get(long key) {
+            for (int i = hash(key); keys[i] != FREE; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(long key, long value) {
+            int i = hash(key);
+            while (keys[i] != FREE && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        void remove(long key) {
+            int i = hash(key);
+            while (keys[i] != key) {
+                if (keys[i] == FREE) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            //shift the following entries of the probe run back, so lookups never stop at a hole
+            int hole = i;
+            for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+                int home = hash(keys[j]);
+                //move the entry if its home is not in (hole, j], taking the wrap around into account
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = FREE;
+        }
+
+        private int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & mask;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package bgu.spl.net.impl.stomp;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The summary of the reports each user sent to each channel, kept up to date as the reports come in,
+ * so asking for one costs the size of the answer and not a pass over every report ever sent.
+ * The lines are rendered only when a summary is asked for.
+ * The text is the one the client's summary command writes: the stats, then the reports by date time and event name.
+ */
+final class ReportSummaries {
+
+    static final String MAX_REPORTS_PROPERTY = "stomp.summary.max.reports";
+
+    private static final ReportSummaries INSTANCE = new ReportSummaries(Integer.getInteger(MAX_REPORTS_PROPERTY, 10_000));
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final int maxReports;
+    private final Map<String, Map<String, Summary>> channels = new ConcurrentHashMap<>();//channel, user, summary
+
+    private ReportSummaries(int maxReports) {
+        this.maxReports = maxReports;
+    }
+
+    static ReportSummaries get() {
+        return INSTANCE;
+    }
+
+    void record(String channel, EventReport report) {
+        channels.computeIfAbsent(channel, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(report.user, key -> new Summary())
+                .add(report, maxReports);
+    }
+
+    /**
+     * @return the summary of the user's reports to the channel, null if the user reported nothing there
+     */
+    String summary(String channel, String user) {
+        Map<String, Summary> users = channels.get(channel);
+        Summary summary = users == null ? null : users.get(user);
+        return summary == null ? null : summary.render(channel);
+    }
+
+    private static final class Summary {
+        private final ReentrantLock lock = new ReentrantLock();
+        //the reports in the order they are shown, the sequence in the key keeps two reports of the same time and name apart
+        private final TreeMap<ReportKey, EventReport> reports = new TreeMap<>();
+        private long total;
+        private long active;
+        private long forcesArrivalAtScene;
+        private long sequence;
+        private long renderedLength;
+
+        void add(EventReport report, int maxReports) {
+            //kept as the report and rendered when a summary is asked for, a channel nobody asks about costs no text
+            EventReport kept = report.detached();
+            lock.lock();
+            try {
+                total++;
+                if (report.active) {
+                    active++;
+                }
+                if (report.forcesArrivalAtScene) {
+                    forcesArrivalAtScene++;
+                }
+                reports.put(new ReportKey(report.dateTime, report.eventName, sequence++), kept);
+                renderedLength += renderedLength(kept);
+                if (reports.size() > maxReports) {
+                    //the stats still count it, the list keeps the latest reports
+                    renderedLength -= renderedLength(reports.pollFirstEntry().getValue());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //about the length of the report's text, to size the summary once
+        private static long renderedLength(EventReport report) {
+            return 32 + report.eventName.length() + report.city.length() + report.descriptionLength();
+        }
+
+        String render(String channel) {
+            lock.lock();
+            try {
+                StringBuilder text = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, renderedLength + 128));
+                text.append("Channel: ").append(channel)
+                        .append("\nStats:\nTotal:").append(total)
+                        .append("\nactive: ").append(active)
+                        .append("\nforces arrival at scene:").append(forcesArrivalAtScene)
+                        .append("\n\nEvent Reports:\n");
+                for (EventReport report : reports.values()) {
+                    text.append(DATE_TIME.format(Instant.ofEpochSecond(report.dateTime))).append(" - ").append(report.eventName)
+                            .append(" - ").append(report.city).append(":\n").append(report.description()).append("\n\n");
+                }
+                return text.toString();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final class ReportKey implements Comparable<ReportKey> {
+        private final long dateTime;
+        private final String eventName;
+        private final long sequence;
+
+        ReportKey(long dateTime, String eventName, long sequence) {
+            this.dateTime = dateTime;
+            this.eventName = eventName;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(ReportKey other) {
+            int compared = Long.compare(dateTime, other.dateTime);
+            if (compared == 0) {
+                compared = eventName.compareTo(other.eventName);
+            }
+            return compared != 0 ? compared : Long.compare(sequence, other.sequence);
+        }
+    }
+}
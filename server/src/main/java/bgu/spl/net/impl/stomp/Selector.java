@@ -0,0 +1,378 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A SUBSCRIBE selector over the fields of the report and the destination, compiled once into a tree of conditions:
+ * <pre>
+ * city = 'Gotham City' AND active = true
+ * NOT (event_name = 'fire' OR date_time &lt; 1700000000)
+ * </pre>
+ * The fields are user, city, event_name, date_time, active, forces_arrival_at_scene, description and destination.
+ * Strings and booleans compare with = and != (or &lt;&gt;), date_time also with &lt;, &lt;=, &gt; and &gt;=.
+ * A message that is not a report only has its destination, every other comparison on it is false.
+ * Selectors that differ only in spacing and case compile to the same canonical text, and share one instance while it is cached.
+ * The cache keeps the stomp.selector.cache.size (1024 by default) selectors used last, a selector it dropped is compiled
+ * again from its canonical text the next time it is needed.
+ */
+final class Selector {
+
+    static final String CACHE_SIZE_PROPERTY = "stomp.selector.cache.size";
+
+    private static final int CACHE_SIZE = Integer.getInteger(CACHE_SIZE_PROPERTY, 1024);
+    private static final Map<String, Selector> COMPILED = new ConcurrentHashMap<>();//canonical text, the selector
+    private static final ReentrantLock EVICTION_LOCK = new ReentrantLock();
+    //moves on every compile. a lookup stamps the selector with it, so eviction finds the least recently used
+    //without a lock or a shared write on the lookup path
+    private static volatile long clock = 0;
+
+    private final Condition condition;
+    private final String text;
+    private long lastUsed; //racy on purpose, an approximate order is enough for eviction
+
+    private Selector(Condition condition) {
+        this.condition = condition;
+        this.text = condition.toString();
+    }
+
+    /**
+     * @throws IllegalArgumentException with the reason, if the text is not a valid selector
+     */
+    static Selector compile(String text) {
+        Parser parser = new Parser(text);
+        Condition condition = parser.or();
+        if (parser.peek() != null) {
+            throw new IllegalArgumentException("unexpected " + parser.peek());
+        }
+        Selector selector = new Selector(condition);
+        Selector known = COMPILED.get(selector.text);
+        if (known != null) {
+            known.lastUsed = clock;
+            return known;
+        }
+        EVICTION_LOCK.lock();
+        try {
+            known = COMPILED.putIfAbsent(selector.text, selector);
+            if (known != null) {
+                return known;
+            }
+            selector.lastUsed = ++clock;
+            if (COMPILED.size() > CACHE_SIZE) {
+                evictLeastRecentlyUsed();
+            }
+            return selector;
+        } finally {
+            EVICTION_LOCK.unlock();
+        }
+    }
+
+    /**
+     * @return the selector of a canonical text, compiled the first time or after the cache dropped it
+     */
+    static Selector forText(String canonicalText) {
+        Selector selector = COMPILED.get(canonicalText);
+        if (selector == null) {
+            return compile(canonicalText);
+        }
+        selector.lastUsed = clock;
+        return selector;
+    }
+
+    static int cachedCount() {
+        return COMPILED.size();
+    }
+
+    //called with the eviction lock held. a scan, only on a compile that found the cache full
+    private static void evictLeastRecentlyUsed() {
+        Selector oldest = null;
+        for (Selector selector : COMPILED.values()) {
+            if (oldest == null || selector.lastUsed < oldest.lastUsed) {
+                oldest = selector;
+            }
+        }
+        COMPILED.remove(oldest.text, oldest);
+    }
+
+    /**
+     * @param report the report in the message, null if the body is not a report
+     */
+    boolean matches(String destination, EventReport report) {
+        return condition.test(destination, report);
+    }
+
+    /**
+     * @return the canonical text: fully parenthesized, keywords in upper case
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private interface Condition {
+        boolean test(String destination, EventReport report);
+    }
+
+    private enum Type { STRING, NUMBER, BOOLEAN }
+
+    private enum Field {
+        USER(Type.STRING), CITY(Type.STRING), EVENT_NAME(Type.STRING), DATE_TIME(Type.NUMBER), ACTIVE(Type.BOOLEAN),
+        FORCES_ARRIVAL_AT_SCENE(Type.BOOLEAN), DESCRIPTION(Type.STRING), DESTINATION(Type.STRING);
+
+        final Type type;
+
+        Field(Type type) {
+            this.type = type;
+        }
+
+        //null when the message has no such field
+        Object of(String destination, EventReport report) {
+            if (this == DESTINATION) {
+                return destination;
+            }
+            if (report == null) {
+                return null;
+            }
+            switch (this) {
+                case USER: return report.user;
+                case CITY: return report.city;
+                case EVENT_NAME: return report.eventName;
+                case DATE_TIME: return report.dateTime;
+                case ACTIVE: return report.active;
+                case FORCES_ARRIVAL_AT_SCENE: return report.forcesArrivalAtScene;
+                default: return report.description();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final class Comparison implements Condition {
+        private final Field field;
+        private final String operator;
+        private final Object literal;
+
+        Comparison(Field field, String operator, Object literal) {
+            this.field = field;
+            this.operator = operator;
+            this.literal = literal;
+        }
+
+        @Override
+        public boolean test(String destination, EventReport report) {
+            Object value = field.of(destination, report);
+            if (value == null) {
+                return false;
+            }
+            if (field.type != Type.NUMBER) {
+                return value.equals(literal) == operator.equals("=");
+            }
+            long compared = Long.compare((Long) value, (Long) literal);
+            switch (operator) {
+                case "=": return compared == 0;
+                case "!=": return compared != 0;
+                case "<": return compared < 0;
+                case "<=": return compared <= 0;
+                case ">": return compared > 0;
+                default: return compared >= 0;
+            }
+        }
+
+        @Override
+        public String toString() {
+            String value = literal instanceof String ? "'" + ((String) literal).replace("'", "''") + "'" : literal.toString();
+            return field + " " + operator + " " + value;
+        }
+    }
+
+    private static final class Junction implements Condition {
+        private final boolean and;
+        private final Condition left;
+        private final Condition right;
+
+        Junction(boolean and, Condition left, Condition right) {
+            this.and = and;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(String destination, EventReport report) {
+            return and ? left.test(destination, report) && right.test(destination, report)
+                    : left.test(destination, report) || right.test(destination, report);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + (and ? " AND " : " OR ") + right + ")";
+        }
+    }
+
+    private static final class Not implements Condition {
+        private final Condition condition;
+
+        Not(Condition condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        public boolean test(String destination, EventReport report) {
+            return !condition.test(destination, report);
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + condition;
+        }
+    }
+
+    //recursive descent: or := and (OR and)*, and := not (AND not)*, not := NOT not | ( or ) | field operator literal
+    private static final class Parser {
+        private final List<String> tokens;
+        private int next = 0;
+
+        Parser(String text) {
+            tokens = tokenize(text);
+        }
+
+        String peek() {
+            return next < tokens.size() ? tokens.get(next) : null;
+        }
+
+        private String take() {
+            String token = peek();
+            if (token == null) {
+                throw new IllegalArgumentException("unexpected end of the selector");
+            }
+            next++;
+            return token;
+        }
+
+        private boolean takeKeyword(String keyword) {
+            if (peek() != null && peek().equalsIgnoreCase(keyword)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        Condition or() {
+            Condition condition = and();
+            while (takeKeyword("OR")) {
+                condition = new Junction(false, condition, and());
+            }
+            return condition;
+        }
+
+        private Condition and() {
+            Condition condition = not();
+            while (takeKeyword("AND")) {
+                condition = new Junction(true, condition, not());
+            }
+            return condition;
+        }
+
+        private Condition not() {
+            if (takeKeyword("NOT")) {
+                return new Not(not());
+            }
+            if (takeKeyword("(")) {
+                Condition condition = or();
+                if (!takeKeyword(")")) {
+                    throw new IllegalArgumentException("missing )");
+                }
+                return condition;
+            }
+            return comparison();
+        }
+
+        private Condition comparison() {
+            String name = take();
+            Field field;
+            try {
+                field = Field.valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("unknown field " + name);
+            }
+            String operator = take();
+            if (operator.equals("<>")) {
+                operator = "!=";
+            }
+            if (!(operator.equals("=") || operator.equals("!="))
+                    && !(field.type == Type.NUMBER && (operator.equals("<") || operator.equals("<=") || operator.equals(">") || operator.equals(">=")))) {
+                throw new IllegalArgumentException("cannot compare " + field + " with " + operator);
+            }
+            return new Comparison(field, operator, literal(field, take()));
+        }
+
+        private static Object literal(Field field, String token) {
+            switch (field.type) {
+                case STRING:
+                    if (token.length() >= 2 && token.startsWith("'") && token.endsWith("'")) {
+                        return token.substring(1, token.length() - 1).replace("''", "'");
+                    }
+                    break;
+                case BOOLEAN:
+                    if (token.equalsIgnoreCase("true") || token.equalsIgnoreCase("false")) {
+                        return Boolean.valueOf(token.toLowerCase(Locale.ROOT));
+                    }
+                    break;
+                default:
+                    try {
+                        return Long.valueOf(token);
+                    } catch (NumberFormatException ex) {
+                        break;
+                    }
+            }
+            throw new IllegalArgumentException(field + " cannot be compared with " + token);
+        }
+
+        //words, numbers, 'quoted strings' ('' is a quote inside one), parentheses and operators
+        private static List<String> tokenize(String text) {
+            List<String> tokens = new ArrayList<>();
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                int start = i;
+                if (Character.isWhitespace(c)) {
+                    i++;
+                    continue;
+                }
+                if (c == '\'') {
+                    i++;
+                    while (i < text.length() && (text.charAt(i) != '\'' || (i + 1 < text.length() && text.charAt(i + 1) == '\''))) {
+                        i += text.charAt(i) == '\'' ? 2 : 1;
+                    }
+                    if (i == text.length()) {
+                        throw new IllegalArgumentException("unterminated string");
+                    }
+                    i++;
+                } else if (c == '(' || c == ')' || c == '=') {
+                    i++;
+                } else if (c == '<' || c == '>' || c == '!') {
+                    i++;
+                    if (i < text.length() && (text.charAt(i) == '=' || (c == '<' && text.charAt(i) == '>'))) {
+                        i++;
+                    } else if (c == '!') {
+                        throw new IllegalArgumentException("unexpected !");
+                    }
+                } else if (Character.isLetterOrDigit(c) || c == '_' || c == '-') {
+                    while (i < text.length() && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_' || text.charAt(i) == '-')) {
+                        i++;
+                    }
+                } else {
+                    throw new IllegalArgumentException("unexpected " + c);
+                }
+                tokens.add(text.substring(start, i));
+            }
+            return tokens;
+        }
+    }
+}
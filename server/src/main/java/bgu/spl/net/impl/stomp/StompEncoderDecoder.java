@@ -2,16 +2,20 @@ package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
-public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
+public class StompEncoderDecoder implements MessageEncoderDecoder<Frame> {
     private byte[] bytes = new byte[1 << 10]; //start with 1k
     private int len = 0;
     @Override
-    public String decodeNextByte(byte nextByte) {
+    public Frame decodeNextByte(byte nextByte) {
         if (nextByte == '\u0000') {
-            return popString();
+            return popFrame();
         }
 
         pushByte(nextByte);
@@ -19,10 +23,112 @@ public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
     }
 
     @Override
-    public byte[] encode(String message) {
-        return (message + "\n\u0000").getBytes(); //uses utf8 by default
+    public List<Frame> decode(ByteBuffer buffer) {
+        //copy the whole chunk after the partial frame we already have, then cut frames on every '\0'
+        int chunk = buffer.remaining();
+        StompMetrics.BYTES_IN.add(chunk);
+        if (len + chunk > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, len + chunk));
+        }
+        buffer.get(bytes, len, chunk);
+        int end = len + chunk;
+
+        List<Frame> frames = Collections.emptyList();
+        int frameStart = 0;
+        int nul = indexOfNul(bytes, len, end);
+        while (nul >= 0) {
+            if (frames.isEmpty()) {
+                frames = new ArrayList<>();
+            }
+            Frame frame = parseFrame(bytes, frameStart, nul);
+            StompMetrics.FRAMES_IN[frame.getCommand().ordinal()].increment();
+            frames.add(frame);
+            frameStart = nul + 1;
+            nul = indexOfNul(bytes, frameStart, end);
+        }
+
+        //keep the beginning of the next frame for the next call
+        len = end - frameStart;
+        if (frameStart > 0 && len > 0) {
+            System.arraycopy(bytes, frameStart, bytes, 0, len);
+        }
+        return frames;
+    }
+
+    @Override
+    public byte[] encode(Frame message) {
+        byte[] headerSection = message.headerSection().getBytes(StandardCharsets.UTF_8);
+        //the array is zeroed, so its last byte is already the '\0' that ends the frame
+        byte[] encoded = Arrays.copyOf(headerSection, headerSection.length + message.getBodyLength() + 1);
+        System.arraycopy(message.getBodyBytes(), message.getBodyOffset(), encoded, headerSection.length, message.getBodyLength());
+        StompMetrics.countOut(message.getCommand(), encoded.length);
+        return encoded;
+    }
+
+    private static int indexOfNul(byte[] bytes, int from, int to) {
+        return indexOf(bytes, (byte) 0, from, to);
+    }
+
+    //plain counted loop over the array without side effects, the JIT unrolls it
+    private static int indexOf(byte[] bytes, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
     }
 
+    //parse bytes[start, end) (without the '\0') in one pass. the frame keeps its own copy of the bytes
+    //and the body is a slice of that copy, so nothing is decoded to a string except the command line and headers
+    private static Frame parseFrame(byte[] source, int start, int end) {
+        byte[] bytes = Arrays.copyOfRange(source, start, end);
+        int length = bytes.length;
+
+        //heart-beats and the EOL some clients send after the '\0' show up as empty lines before the command
+        int pos = 0;
+        while (pos < length && (bytes[pos] == '\n' || bytes[pos] == '\r')) {
+            pos++;
+        }
+
+        int lineEnd = lineEnd(bytes, pos, length);
+        Frame frame = new Frame(Frame.Command.of(bytes, pos, withoutCr(bytes, pos, lineEnd)), bytes, length);
+        pos = lineEnd + 1;
+
+        //headers, until the empty line
+        while (pos < length) {
+            lineEnd = lineEnd(bytes, pos, length);
+            int contentEnd = withoutCr(bytes, pos, lineEnd);
+            if (contentEnd == pos) {
+                pos = lineEnd + 1;
+                break;
+            }
+            //only the first ':' separates the name, the value may contain more of them
+            int colon = indexOf(bytes, (byte) ':', pos, contentEnd);
+            if (colon < 0) {
+                colon = contentEnd;
+            }
+            String name = new String(bytes, pos, colon - pos, StandardCharsets.UTF_8);
+            String value = colon < contentEnd ? new String(bytes, colon + 1, contentEnd - colon - 1, StandardCharsets.UTF_8) : "";
+            frame.addHeader(name, value);
+            pos = lineEnd + 1;
+        }
+
+        if (pos < length) {
+            frame.setBody(bytes, pos, length - pos);
+        }
+        return frame;
+    }
+
+    private static int lineEnd(byte[] bytes, int from, int to) {
+        int newLine = indexOf(bytes, (byte) '\n', from, to);
+        return newLine < 0 ? to : newLine;
+    }
+
+    //STOMP 1.2 allows lines to end with \r\n
+    private static int withoutCr(byte[] bytes, int lineStart, int lineEnd) {
+        return lineEnd > lineStart && bytes[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+    }
 
     private void pushByte(byte nextByte) {
         if (len >= bytes.length) {
@@ -32,10 +138,10 @@ public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
         bytes[len++] = nextByte;
     }
 
-    private String popString() {
-        //notice that we explicitly requesting that the string will be decoded from UTF-8
-        //this is not actually required as it is the default encoding in java.
-        String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
+    private Frame popFrame() {
+        Frame result = parseFrame(bytes, 0, len);
+        StompMetrics.BYTES_IN.add(len + 1);
+        StompMetrics.FRAMES_IN[result.getCommand().ordinal()].increment();
         len = 0;
         return result;
     }
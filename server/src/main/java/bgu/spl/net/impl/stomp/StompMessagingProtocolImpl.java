@@ -1,105 +1,105 @@
 package bgu.spl.net.impl.stomp;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.impl.stomp.Frame.Command;
+import bgu.spl.net.srv.AckMode;
 import bgu.spl.net.srv.ConnectionHandler;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.DestinationTrie;
+import bgu.spl.net.srv.OutboundPolicy;
+import bgu.spl.net.srv.Publication;
+import bgu.spl.net.srv.Subscribers;
+import bgu.spl.net.srv.metrics.ServerMetrics;
 
 
 //T is the protocol we are using (TPC/Reactor)
-public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
+public class StompMessagingProtocolImpl implements StompMessagingProtocol<Frame> {
     int connectionId;
-    Connections<String> connections;
+    Connections<Frame> connections;
     private boolean shouldTerminate = false;
     private final String HOST = "stomp.cs.bgu.ac.il";//the host of the server
     private final String VERSION = "1.2";//the host of the server
+    //a SEND here is answered with the server metrics, only to the sender (who has to be subscribed to it like to any channel)
+    static final String METRICS_DESTINATION = "$SYS/metrics";
+    //a SEND here with channel and user headers is answered with the summary of that user's reports to the channel
+    static final String SUMMARY_DESTINATION = "$SYS/summary";
+    //optional SUBSCRIBE headers asking for the history kept in the event log
+    static final String REPLAY_FROM_ID = "replay-from-id";
+    static final String REPLAY_SINCE = "replay-since";
+    //optional SUBSCRIBE header asking for up to that many of the channel's last messages
+    static final String HISTORY = "history";
+    //optional SEND header: the body holds several reports, of these byte lengths (comma separated) one after the other
+    static final String BATCH_LENGTHS = "batch-lengths";
+    //optional SUBSCRIBE header: auto (the default), client or client-individual
+    static final String ACK_MODE = "ack";
+    //optional SUBSCRIBE header: only the reports it matches are sent to the subscription, see Selector
+    static final String SELECTOR = "selector";
+    //CONNECTED header: the token of the session. a CONNECT with it resumes the session if its connection went away
+    //without DISCONNECT, and its CONNECTED says if it did in the resumed header
+    static final String SESSION = "session";
+    static final String RESUMED = "resumed";
+    //the server's side of the heart-beat negotiation: how often it can send a beat, how often it wants one (0 = never)
+    static final String HEART_BEAT = "heart-beat";
+    static final long HEART_BEAT_SEND_MILLIS = Long.getLong("stomp.heartbeat.send.millis", 10_000);
+    static final long HEART_BEAT_RECEIVE_MILLIS = Long.getLong("stomp.heartbeat.receive.millis", 10_000);
+    private static final byte[] EOL = {'\n'};
 
 
     @Override
-    public void start(int connectionId, Connections<String> connections) {
+    public void start(int connectionId, Connections<Frame> connections) {
         this.connectionId = connectionId;
         this.connections = connections;
     }
 
     @Override
-    public String process(String message) {
-        //identify the command type and extract the headers + body
+    public Frame process(Frame message) {
+        //the codec already split the frame to command, headers and body
+        long started = System.nanoTime();
 
-        List<String> messageByCommands = new ArrayList<>(Arrays.asList(message.split("\n")));
-
-        String command = messageByCommands.remove(0);
-        
-        HashMap<String, String> headers =new HashMap<>();
-        boolean bodyReached = false;
-
-        StringBuilder bodyBuiler = new StringBuilder();
-        String body = "";
-
-        for (String line : messageByCommands) {
-            if (bodyReached) {
-                if(line.equals("\u0000"))
-                {
-                    //end of message
-                    break;
-                }
-                else{
-                    if (bodyBuiler.length() == 0) 
-                        bodyBuiler.append(line);
-                    else
-                        bodyBuiler.append("\n").append(line);
-                }
-            }
-            else if (line.equals("")) {
-                bodyReached = true;
-            }
-            else{
-                String[] headerLine = line.split(":");
-                headers.put(headerLine[0], headerLine[1]);
-            }
-
-        }
-        body = bodyBuiler.toString();
-
-
-        //System.out.println("Command: "+command);//for testing client
+        //System.out.println("Command: "+message.getCommand());//for testing client
         
-        String response = null;
+        Frame response = null;
         boolean shouldLogoutUser = true;
         //the function will return what the server should send back to the client (Error/Receipt)
-        switch (command) {
+        switch (message.getCommand()) {
             //client frames
-            case "CONNECT":
-                response = connectCommand(body, headers, message);
+            case CONNECT:
+                response = connectCommand(message);
                 shouldLogoutUser = false;
                 break;
-            case "SEND":
-                response = sendCommand(body, headers, message);
+            case SEND:
+                response = sendCommand(message);
+                break;
+            case SUBSCRIBE:
+                response = subscribeCommand(message);
+                break;
+            case UNSUBSCRIBE:
+                response = unsubscribeCommand(message);
                 break;
-            case "SUBSCRIBE":
-                response = subscribeCommand(body, headers, message);
+            case ACK:
+                response = ackCommand(message, true);
                 break;
-            case "UNSUBSCRIBE":
-                response = unsubscribeCommand(body, headers, message);
+            case NACK:
+                response = ackCommand(message, false);
                 break;
-            case "DISCONNECT":
-                response = disconnectCommand(body, headers, message);
+            case DISCONNECT:
+                response = disconnectCommand(message);
                 break;
             default:
-                response = generateError(message, "Unknown command", headers.get("receipt"));
+                response = generateError(message, "Unknown command");
                 break;
         }
-        //detect the response type by the first word
-        if (response.equals("")) {
+        //detect the response type by its command
+        if (response == null) {
             //do nothing
         }
         else{
-            switch(response.split("\n")[0]){
-                case "DISCONNECT":
+            switch(response.getCommand()){
+                case DISCONNECT:
                     //send disconnect and disconnect
                     // connections.send(connectionId, response);
                     // ConnectionHandler<String> handler1 = connections.getHandler(connectionId);
@@ -117,14 +117,15 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
                     connections.disconnect(connectionId);
                     break;
 
-                case "ERROR":
+                case ERROR:
                     //send error and disconnect
                     connections.send(connectionId, response);
-                    ConnectionHandler<String> handler = connections.getHandler(connectionId);
+                    ConnectionHandler<Frame> handler = connections.getHandler(connectionId);
                     this.shouldTerminate = true;
 
 
                     if (shouldLogoutUser) {// during failed connect the user is not logged in
+                        connections.endSession(connectionId);//a client the server rejected does not resume its session
                         connections.disconnect(connectionId);
                     }
 
@@ -136,7 +137,7 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
                     response = null;
                     break;
 
-                case "RECEIPT":
+                case RECEIPT:
                     //send receipt
                     //connections.send(connectionId, response);
                     break;
@@ -146,19 +147,21 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
                     break;
             }
         } 
+        StompMetrics.PROCESS_NANOS[message.getCommand().ordinal()].record(System.nanoTime() - started);
         return response;       
     }
 
     
-    private String checkStructure(String[] fixedHandlers, HashMap<String,String> headers,String commandType,String message){
+    private Frame checkStructure(String[] fixedHandlers, Frame message, String commandType){
         boolean wrongStructure = false;
         String errorDescription = "";
         for (String header : fixedHandlers) {
-            if (!headers.containsKey(header)) {
+            String value = message.getHeader(header);
+            if (value == null) {
                 wrongStructure = true;
-                errorDescription = "Did not contain a " +header+"header,\nwhich is REQUIRED for "+commandType.toLowerCase()+" propagation.";
+                errorDescription = "Did not contain a " +header+" header,\nwhich is REQUIRED for "+commandType.toLowerCase()+" propagation.";
                 break;
-            }else if (headers.get(header).equals("")){
+            }else if (value.equals("")){
                 wrongStructure = true;
                 errorDescription = "The " +header+" header is empty,\nwhich is REQUIRED for "+commandType.toLowerCase()+" propagation.";
                 break;
@@ -166,64 +169,63 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         }
         if(wrongStructure ){
             //send an error
-            String errorMSG = "ERROR\n";
-            if (headers.containsKey("receipt")) {
-                errorMSG+= "receipt-id: " + headers.get("receipt")+"\n";
-            }
-            errorMSG+= "message: malformed frame received\n\nThe message:\n----\n" +message+"\n----\n"+ errorDescription + "\u0000";
-            return errorMSG;
+            return generateError(message, "malformed frame received", errorDescription);
         }
-        return "";
+        return null;
         
     }
 
 
 
-    private String connectCommand(String body, HashMap<String,String> headers,String message){
+    private Frame connectCommand(Frame message){
         String[] connectStructure = {"accept-version","host", "login","passcode"};
-        String errorMSG = checkStructure(connectStructure,headers,"CONNECT",message);
-        if(!errorMSG.equals(""))
+        Frame errorMSG = checkStructure(connectStructure,message,"CONNECT");
+        if(errorMSG != null)
             return errorMSG;
 
-        String response = "";
+        String login = message.getHeader("login");
+        long[] heartBeat = null;//what the client offers: how often it sends a beat, how often it wants one
+        if (message.hasHeader(HEART_BEAT)) {
+            heartBeat = parseHeartBeat(message.getHeader(HEART_BEAT));
+            if (heartBeat == null) {
+                return generateError(message, "malformed frame received", "The " + HEART_BEAT + " header must be two comma separated numbers of milliseconds.");
+            }
+        }
+        Frame response = null;
         //identify the case: wrong host, new username, wrong password, already connected,wrong version, everything is correct
-        if (!headers.get("host").equals(HOST)) {
+        if (!message.getHeader("host").equals(HOST)) {
             //wrong host
-            response = generateError(message,"Wrong host",headers.get("receipt"));
+            response = generateError(message,"Wrong host");
         }
-        else if (!headers.get("accept-version").equals(VERSION)) {
+        else if (!message.getHeader("accept-version").equals(VERSION)) {
             //wrong version
-            response = generateError(message,"Wrong version",headers.get("receipt"));
+            response = generateError(message,"Wrong version");
 
         }
-        else if (connections.isUniqeUser(headers.get("login"))) {
+        else if (connections.isUniqeUser(login)) {
             //new user
             //change the user to connected, send a connected message
-            connections.addUser(connectionId, headers.get("login"), headers.get("passcode"), connections.getHandler(connectionId));
-            connections.connect(connectionId,headers.get("login"));
-            HashMap<String,String> connected = new HashMap<>();
-            connected.put("version", VERSION);
-            response = generateMessage(connected, "CONNECTED", "");
+            connections.addUser(connectionId, login, message.getHeader("passcode"), connections.getHandler(connectionId));
+            connections.connect(connectionId,login);
+            response = loggedIn(message, connected(heartBeat));
         }
         else{
-             if (connections.isValidUser(connectionId,headers.get("login"), headers.get("passcode"))) {
-                if (connections.isUserConnected(headers.get("login"))) {
+             if (connections.isValidUser(connectionId,login, message.getHeader("passcode"))) {
+                if (connections.isUserConnected(login)) {
                     //already connected
-                    response = generateError(message,"User already logged in",headers.get("receipt"));
+                    response = generateError(message,"User already logged in");
 
                 }
                 else{
                     //everything is correct
                     //change the user to connected, send a connected message
-                    connections.connect(connectionId,headers.get("login"));
-                    HashMap<String,String> connected = new HashMap<>();
-                    connected.put("version", VERSION);
-                    response = generateMessage(connected, "CONNECTED", "");
+                    connections.connect(connectionId,login);
+                    response = loggedIn(message, connected(heartBeat));
                 }
              }
              else{
                 //wrong password
-                response = generateError(message,"Wrong password",headers.get("receipt"));
+                response = generateError(message,"Wrong password");
              }
         }
         return response;
@@ -231,141 +233,445 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     
 
     
-    private String disconnectCommand(String body, HashMap<String,String> headers,String message){
+    //sends CONNECTED itself, before the subscriptions restored for the user start getting messages
+    private Frame loggedIn(Frame connect, Frame connected){
+        if (connect.hasHeader(SESSION)) {
+            connected.addHeader(RESUMED, String.valueOf(connections.resumeSession(connectionId, connect.getHeader(SESSION))));
+        }
+        String session = connections.startSession(connectionId);
+        if (session != null) {
+            connected.addHeader(SESSION, session);
+        }
+        connections.send(connectionId, connected);
+        connections.restoreSubscriptions(connectionId);
+        return null;
+    }
+
+    //a client without a heart-beat header gets a CONNECTED without one, like before heart-beating
+    private Frame connected(long[] heartBeat){
+        Frame connected = new Frame(Command.CONNECTED).addHeader("version", VERSION);
+        if (heartBeat == null) {
+            return connected;
+        }
+        //each direction beats at the slower of what its sender can do and its receiver wants, if both want it at all
+        long sendMillis = heartBeat[1] == 0 || HEART_BEAT_SEND_MILLIS == 0 ? 0 : Math.max(heartBeat[1], HEART_BEAT_SEND_MILLIS);
+        long receiveMillis = heartBeat[0] == 0 || HEART_BEAT_RECEIVE_MILLIS == 0 ? 0 : Math.max(heartBeat[0], HEART_BEAT_RECEIVE_MILLIS);
+        boolean beating = (sendMillis == 0 && receiveMillis == 0)
+                || connections.getHandler(connectionId).startHeartBeat(sendMillis, receiveMillis, EOL);
+        //the client does the same negotiation with the server's side
+        return connected.addHeader(HEART_BEAT, beating ? HEART_BEAT_SEND_MILLIS + "," + HEART_BEAT_RECEIVE_MILLIS : "0,0");
+    }
+
+    //"<cx>,<cy>", null if it is not two non negative numbers
+    private static long[] parseHeartBeat(String value){
+        String[] parts = value.split(",");
+        if (parts.length != 2) {
+            return null;
+        }
+        try {
+            long[] heartBeat = {Long.parseLong(parts[0].trim()), Long.parseLong(parts[1].trim())};
+            return heartBeat[0] < 0 || heartBeat[1] < 0 ? null : heartBeat;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+
+    private Frame disconnectCommand(Frame message){
         String[] disconnectStructure = {"receipt"};
-        String errorMSG = checkStructure(disconnectStructure,headers,"disconnect",message);
-        if(!errorMSG.equals(""))
+        Frame errorMSG = checkStructure(disconnectStructure,message,"disconnect");
+        if(errorMSG != null)
             return errorMSG;
 
 
+        connections.endSession(connectionId);//a client that says goodbye does not come back to this session
         connections.disconnect(connectionId);
         //send a receipt to the user
-        HashMap<String,String> receipt = new HashMap<>();
-        receipt.put("receipt-id", headers.get("receipt"));
-        return generateMessage(receipt, "RECEIPT", "");      
+        return generateReceipt(message.getHeader("receipt"));
     }
     
     
-    private String sendCommand(String body, HashMap<String,String> headers,String message){
+    private Frame sendCommand(Frame message){
         String[] sendStructure = {"destination"};
-        String errorMSG = checkStructure(sendStructure,headers,"send",message);
-        if(!errorMSG.equals(""))
+        Frame errorMSG = checkStructure(sendStructure,message,"send");
+        if(errorMSG != null)
             return errorMSG;
 
-        String destination = headers.get("destination").substring(1);//remove the first character which is '/'
-        //check if the user is subscribed to the destination
+        String destination = message.getHeader("destination").substring(1);//remove the first character which is '/'
+        if (DestinationTrie.isPattern(destination)) {
+            //a report goes to one channel, the wildcards are for subscribing
+            return generateError(message, "Cannot send to a destination with wildcards");
+        }
+        //check if the user is subscribed to the destination (or to a wildcard destination that covers it)
         if (connections.isUserSubscribed(destination, connectionId)) {
+            if (destination.equals(METRICS_DESTINATION)) {
+                //not a report, the sender asks for the server metrics
+                sendMetrics();
+                return message.hasHeader("receipt") ? generateReceipt(message.getHeader("receipt")) : null;
+            }
+            if (destination.equals(SUMMARY_DESTINATION)) {
+                errorMSG = checkStructure(new String[]{"channel", "user"}, message, "summary");
+                if (errorMSG != null)
+                    return errorMSG;
+                sendSummary(message.getHeader("channel"), message.getHeader("user"));
+                return message.hasHeader("receipt") ? generateReceipt(message.getHeader("receipt")) : null;
+            }
             //send the message to the destination
-
-            //get all the subscribers
-            ArrayList<Integer> subscribers = new ArrayList<>(connections.getSubscribedId(destination));
-            int messageId = connections.getMessageId();
-            connections.incrementMessageId();
-            for (int subscriber : subscribers) {
-                int subscriptionId = connections.getSubscriptionId(destination,subscriber);//get the unique subscription id
-                //convert body to MESSAGE frame
-                String msg = bodyToMessage(body, destination,subscriptionId, messageId);
-                connections.send(subscriber, msg);
+            int[] offsets;
+            if (message.hasHeader(BATCH_LENGTHS)) {
+                offsets = batchOffsets(message.getHeader(BATCH_LENGTHS), message.getBodyLength());
+                if (offsets == null) {
+                    return generateError(message, "malformed frame received",
+                            "The " + BATCH_LENGTHS + " header must be the comma separated byte lengths of the reports in the body.");
+                }
+            } else {
+                offsets = new int[]{0, message.getBodyLength()};
+            }
+            byte[] body = message.getBodyBytes();
+            int bodyOffset = message.getBodyOffset();
+            int count = offsets.length - 1;
+
+            //everything after the subscription header is the same for all subscribers, encode it once.
+            //the subscribers come with the subscription id each of them chose
+            int[] next = {0};//the parts are encoded in order, one per message id
+            Publication publication = connections.publish(destination, count, messageId -> {
+                int index = next[0]++;
+                return encodeMessageTail(body, bodyOffset + offsets[index], offsets[index + 1] - offsets[index], destination, messageId);
+            });
+            //only the lines before the description are read here, the summaries and selectors decode the rest if they need it
+            EventReport[] reports = new EventReport[count];
+            for (int m = 0; m < count; m++) {
+                reports[m] = EventReport.parse(body, bodyOffset + offsets[m], offsets[m + 1] - offsets[m]);
+            }
+            Subscribers subscribers = publication.getSubscribers();
+            //each distinct selector is evaluated once per message, its subscribers share the answer
+            boolean[][] selected = select(subscribers.distinctSelectors(), destination, reports);
+            //a BLOCK policy waits for slow subscribers once for the whole fan-out, not once for each of them
+            OutboundPolicy.startFanOut();
+            try {
+                for (int i = 0; i < subscribers.size(); i++) {
+                    int group = subscribers.selectorGroup(i);
+                    boolean[] wanted = group < 0 ? null : selected[group];
+                    if (subscribers.ackMode(i) != AckMode.AUTO) {
+                        //the frames carry an ack header and are kept until the client acknowledges them
+                        sendForAck(publication, subscribers.connectionId(i), subscribers.subscriptionId(i), wanted);
+                        continue;
+                    }
+                    //the whole batch goes to a subscriber as one gathered write
+                    ByteBuffer head = encodeMessageHead(subscribers.subscriptionId(i));
+                    ByteBuffer[] frames = new ByteBuffer[2 * (wanted == null ? count : countSelected(wanted))];
+                    if (frames.length == 0) {
+                        continue;
+                    }
+                    int part = 0;
+                    for (int m = 0; m < count; m++) {
+                        if (wanted != null && !wanted[m]) {
+                            continue;
+                        }
+                        ByteBuffer sharedPart = publication.getSharedPart(m);
+                        frames[part++] = head.duplicate();
+                        frames[part++] = sharedPart.duplicate();
+                        StompMetrics.countOut(Command.MESSAGE, head.remaining() + sharedPart.remaining());
+                    }
+                    connections.sendEncoded(subscribers.connectionId(i), subscribers.subscriptionId(i), frames);
+                }
+            } finally {
+                OutboundPolicy.endFanOut();
+            }
+            //the summaries are updated as the reports come in, a summary request does not go over them again
+            for (EventReport report : reports) {
+                if (report != null) {
+                    ReportSummaries.get().record(destination, report);
+                }
             }
             //send a receipt to the user
-            if (headers.containsKey("receipt")) {
-                String receiptID = headers.get("receipt");
-                String receiptMSG = "RECEIPT\nreceipt-id: " + receiptID + "\n";
-                return receiptMSG;
+            if (message.hasHeader("receipt")) {
+                return generateReceipt(message.getHeader("receipt"));
             }
         }else{
             //send an error
-            errorMSG = generateError(message,"User is not subscribed to the destination",headers.get("receipt"));
+            errorMSG = generateError(message,"User is not subscribed to the destination");
             return errorMSG;
         }
 
-        return "";
+        return null;
     }
     
 
 
-    private String subscribeCommand(String body, HashMap<String,String> headers,String message){
+    //selected[selector][message]: whether the selector matches the report
+    private static boolean[][] select(String[] selectors, String destination, EventReport[] reports) {
+        boolean[][] selected = new boolean[selectors.length][];
+        for (int s = 0; s < selectors.length; s++) {
+            Selector selector = Selector.forText(selectors[s]);
+            selected[s] = new boolean[reports.length];
+            for (int m = 0; m < reports.length; m++) {
+                selected[s][m] = selector.matches(destination, reports[m]);
+            }
+        }
+        return selected;
+    }
+
+    private static int countSelected(boolean[] wanted) {
+        int count = 0;
+        for (boolean message : wanted) {
+            if (message) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    //wanted is null when the subscriber gets every message
+    private void sendForAck(Publication publication, int subscriberId, int subscriptionId, boolean[] wanted) {
+        for (int m = 0; m < publication.size(); m++) {
+            if (wanted != null && !wanted[m]) {
+                continue;
+            }
+            long messageId = publication.getFirstMessageId() + m;
+            ByteBuffer head = encodeMessageHead(subscriptionId, messageId);
+            ByteBuffer sharedPart = publication.getSharedPart(m);
+            StompMetrics.countOut(Command.MESSAGE, head.remaining() + sharedPart.remaining());
+            connections.sendForAck(subscriberId, subscriptionId, messageId, head, sharedPart);
+        }
+    }
+
+
+    //where each report of a batch starts in the body, followed by the body length. null if the lengths do not add up to it
+    private static int[] batchOffsets(String lengths, int bodyLength) {
+        String[] parts = lengths.split(",");
+        int[] offsets = new int[parts.length + 1];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                int length = Integer.parseInt(parts[i].trim());
+                if (length < 0 || offsets[i] + (long) length > bodyLength) {
+                    return null;
+                }
+                offsets[i + 1] = offsets[i] + length;
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return offsets[parts.length] == bodyLength ? offsets : null;
+    }
+
+
+    private Frame subscribeCommand(Frame message){
         String[] subscribeStructure = {"destination", "id"};
-        String errorMSG = checkStructure(subscribeStructure,headers,"SUBSCRIBE",message);
-        if(!errorMSG.equals(""))
+        Frame errorMSG = checkStructure(subscribeStructure,message,"SUBSCRIBE");
+        if(errorMSG != null)
             return errorMSG;
 
         //subscribe the user to the destination and save the uniqe subscribtion id
-        String destination = headers.get("destination");
+        String destination = message.getHeader("destination");
         //destination = destination.substring(1);//remove the first character which is '/'
-        int subscriptionId = Integer.parseInt(headers.get("id"));
-        String isSubscribed = connections.subscribeUser(connectionId, destination, subscriptionId);
+        int subscriptionId = Integer.parseInt(message.getHeader("id"));
+        AckMode ackMode = message.hasHeader(ACK_MODE) ? AckMode.fromHeader(message.getHeader(ACK_MODE)) : AckMode.AUTO;
+        if (ackMode == null) {
+            return generateError(message, "malformed frame received", "The " + ACK_MODE + " header must be auto, client or client-individual.");
+        }
+        String selector = null;//the canonical text, subscriptions with the same selector share it
+        if (message.hasHeader(SELECTOR)) {
+            try {
+                selector = Selector.compile(message.getHeader(SELECTOR)).toString();
+            } catch (IllegalArgumentException ex) {
+                return generateError(message, "malformed frame received", "The " + SELECTOR + " header is not valid: " + ex.getMessage() + ".");
+            }
+        }
+        String isSubscribed;
+        if (message.hasHeader(REPLAY_FROM_ID) || message.hasHeader(REPLAY_SINCE)) {
+            //the subscriber first gets what the channel's event log holds from that message id / time (epoch millis) on
+            long fromMessageId;
+            long sinceMillis;
+            try {
+                fromMessageId = message.hasHeader(REPLAY_FROM_ID) ? Long.parseLong(message.getHeader(REPLAY_FROM_ID)) : 0;
+                sinceMillis = message.hasHeader(REPLAY_SINCE) ? Long.parseLong(message.getHeader(REPLAY_SINCE)) : 0;
+            } catch (NumberFormatException ex) {
+                return generateError(message, "malformed frame received", "The " + REPLAY_FROM_ID + " and " + REPLAY_SINCE + " headers must be numbers.");
+            }
+            isSubscribed = connections.subscribeUser(connectionId, destination, subscriptionId, ackMode, selector, fromMessageId, sinceMillis);
+        } else if (message.hasHeader(HISTORY)) {
+            //the subscriber first gets the last messages of the channel kept in memory
+            int recentMessages;
+            try {
+                recentMessages = Integer.parseInt(message.getHeader(HISTORY));
+            } catch (NumberFormatException ex) {
+                return generateError(message, "malformed frame received", "The " + HISTORY + " header must be a number.");
+            }
+            isSubscribed = connections.subscribeUser(connectionId, destination, subscriptionId, ackMode, selector, recentMessages);
+        } else {
+            isSubscribed = connections.subscribeUser(connectionId, destination, subscriptionId, ackMode, selector);
+        }
 
-        String response = "";
+        Frame response = null;
         if (isSubscribed.equals("")) {
             //send a receipt to the user
-            if (headers.containsKey("receipt")) {
-                String receiptID = headers.get("receipt");
-                response = "RECEIPT\nreceipt-id: " + receiptID + "\n";
+            if (message.hasHeader("receipt")) {
+                response = generateReceipt(message.getHeader("receipt"));
             }
         }
         else{
             //send an error
-            response = generateError(message,isSubscribed,headers.get("receipt"));
+            response = generateError(message,isSubscribed);
         }
         return response;
     }
 
 
-    private String unsubscribeCommand(String body, HashMap<String,String> headers,String message){
+    private Frame unsubscribeCommand(Frame message){
         String[] unsubscribeStructure = {"id"};
-        String errorMSG = checkStructure(unsubscribeStructure,headers,"UNSUBSCRIBE",message);
-        if(!errorMSG.equals(""))
+        Frame errorMSG = checkStructure(unsubscribeStructure,message,"UNSUBSCRIBE");
+        if(errorMSG != null)
             return errorMSG;
         
 
-        String response = "";
+        Frame response = null;
         //check if the user is subscribed to the destination
-        boolean isUnsubscribed = connections.unsubscribe(connectionId, Integer.parseInt(headers.get("id")));
+        boolean isUnsubscribed = connections.unsubscribe(connectionId, Integer.parseInt(message.getHeader("id")));
         if (isUnsubscribed) {
             //unsubscribe successful
-            if (headers.containsKey("receipt")) {
-                String receiptID = headers.get("receipt");
-                response = "RECEIPT\nreceipt-id: " + receiptID + "\n";
+            if (message.hasHeader("receipt")) {
+                response = generateReceipt(message.getHeader("receipt"));
             }
         }
         else{
             //send an error
-            response = generateError(message,"User is not subscribed to the destination",headers.get("receipt"));
+            response = generateError(message,"User is not subscribed to the destination");
         }
         return response;
         
     }
 
     
+    //ACK (accepted) or NACK of a MESSAGE received on a subscription with ack:client or ack:client-individual
+    private Frame ackCommand(Frame message, boolean accepted){
+        String commandType = accepted ? "ACK" : "NACK";
+        Frame errorMSG = checkStructure(new String[]{"id"}, message, commandType);
+        if(errorMSG != null)
+            return errorMSG;
+
+        long messageId;
+        try {
+            messageId = Long.parseLong(message.getHeader("id"));
+        } catch (NumberFormatException ex) {
+            return generateError(message, "malformed frame received", "The id header of " + commandType + " must be the ack header of a MESSAGE.");
+        }
+        //an id that is not waiting is not an error: the message may have been acknowledged already,
+        //or given up, or the client acknowledged a message of a subscription that does not ask for it
+        connections.acknowledge(connectionId, messageId, accepted);
+        if (message.hasHeader("receipt")) {
+            return generateReceipt(message.getHeader("receipt"));
+        }
+        return null;
+    }
+
+
+    //the snapshot goes out as a MESSAGE on the metrics destination, to this connection alone
+    private void sendMetrics() {
+        StompMetrics.METRICS_REQUESTS.increment();
+        sendToSender(METRICS_DESTINATION, ServerMetrics.get().getReport());
+    }
+
+    private void sendSummary(String channel, String user) {
+        StompMetrics.SUMMARY_REQUESTS.increment();
+        String summary = ReportSummaries.get().summary(channel, user);
+        sendToSender(SUMMARY_DESTINATION, summary != null ? summary : "No messages from " + user + " in " + channel);
+    }
+
+    //a MESSAGE on one of the $SYS destinations, to this connection alone
+    private void sendToSender(String destination, String body) {
+        long messageId = connections.reserveMessageIds(destination, 1);
+        Frame answer = new Frame(Command.SEND).setBody(body);
+        ByteBuffer head = encodeMessageHead(connections.getSubscriptionId(destination, connectionId));
+        ByteBuffer tail = encodeMessageTail(answer, destination, messageId);
+        StompMetrics.countOut(Command.MESSAGE, head.remaining() + tail.remaining());
+        connections.sendEncoded(connectionId, head, tail);
+    }
+
     @Override
     public boolean shouldTerminate() {
         return shouldTerminate;
     }
 
 
-    private String bodyToMessage(String body, String destination,int subscriptionId, int messageId){ 
-        //add / to destination
-        String msg =  "MESSAGE\nsubscription:" + subscriptionId + "\nmessage-id:" + messageId + "\ndestination:/" + destination + "\n\n" + body+"\n" ;
-        return msg;
+    //a MESSAGE frame is sent as a small per subscriber head followed by the shared tail:
+    //MESSAGE\nsubscription:<id>\n | message-id:<id>\ndestination:/<channel>\n\n<body>\n\n\0
+    static ByteBuffer encodeMessageHead(int subscriptionId){
+        return ByteBuffer.wrap(("MESSAGE\nsubscription:" + subscriptionId + "\n").getBytes(StandardCharsets.UTF_8));
     }
 
-    private String generateError(String message,String description, String receipt){
-        String errorMSG = "ERROR\n";
-        if (receipt != null) {
-            errorMSG+= "receipt-id: " + receipt+"\n";
+    //the head for a subscription that acknowledges: the ack header is what the client puts in the id of its ACK/NACK
+    static ByteBuffer encodeMessageHead(int subscriptionId, long messageId){
+        return ByteBuffer.wrap(("MESSAGE\nsubscription:" + subscriptionId + "\nack:" + messageId + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    //the report in the body of a shared part, null if it is not one. the buffer does not move
+    static EventReport reportOf(ByteBuffer sharedPart){
+        byte[] tail;
+        int start;
+        if (sharedPart.hasArray()) {
+            tail = sharedPart.array();
+            start = sharedPart.arrayOffset() + sharedPart.position();
+        } else {
+            tail = new byte[sharedPart.remaining()];
+            sharedPart.duplicate().get(tail);
+            start = 0;
+        }
+        int end = start + sharedPart.remaining();
+        int bodyStart = start;
+        while (bodyStart + 1 < end && !(tail[bodyStart] == '\n' && tail[bodyStart + 1] == '\n')) {
+            bodyStart++;
+        }
+        bodyStart += 2;
+        //without the two newlines and the '\0' that end the frame
+        return bodyStart <= end - 3 ? EventReport.parse(tail, bodyStart, end - 3 - bodyStart) : null;
+    }
+
+    //the message id of a shared part, read from its message-id header without moving the buffer
+    static long messageIdOf(ByteBuffer sharedPart){
+        long messageId = 0;
+        for (int i = sharedPart.position() + "message-id:".length(); i < sharedPart.limit() && sharedPart.get(i) != '\n'; i++) {
+            messageId = messageId * 10 + (sharedPart.get(i) - '0');
         }
-        errorMSG+= "The message: \n-----\n"+message+"\n-----\n"+description;
-        return errorMSG;
+        return messageId;
+    }
 
+    private ByteBuffer encodeMessageTail(Frame message, String destination, long messageId){
+        return encodeMessageTail(message.getBodyBytes(), message.getBodyOffset(), message.getBodyLength(), destination, messageId);
     }
 
-    private String generateMessage(HashMap<String,String> headers,String commandType,String body){
-        String message = "" + commandType + "\n";
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            message = message + entry.getKey() + ":" + entry.getValue() + "\n";
+    private ByteBuffer encodeMessageTail(byte[] body, int bodyOffset, int bodyLength, String destination, long messageId){
+        //add / to destination
+        byte[] headers = ("message-id:" + messageId + "\ndestination:/" + destination + "\n\n").getBytes(StandardCharsets.UTF_8);
+        //clients read the description as the last line of the body, so the trailing newlines of the SEND body are dropped
+        while (bodyLength > 0 && (body[bodyOffset + bodyLength - 1] == '\n' || body[bodyOffset + bodyLength - 1] == '\r')) {
+            bodyLength--;
         }
-        message = message + "\n" + body;
-        return message;
+        byte[] tail = Arrays.copyOf(headers, headers.length + bodyLength + 3);
+        System.arraycopy(body, bodyOffset, tail, headers.length, bodyLength);
+        tail[tail.length - 3] = '\n';
+        tail[tail.length - 2] = '\n';
+        //the last byte stays 0, the end of the frame
+        return ByteBuffer.wrap(tail);
+    }
+
+    private Frame generateReceipt(String receipt){
+        return new Frame(Command.RECEIPT).addHeader("receipt-id", receipt);
+    }
+
+    private Frame generateError(Frame message,String description){
+        return generateError(message, description, description);
+    }
+
+    //the original frame is only turned back into text here, when it is reported
+    private Frame generateError(Frame message,String summary, String description){
+        Frame error = new Frame(Command.ERROR);
+        String receipt = message.getHeader("receipt");
+        if (receipt != null) {
+            error.addHeader("receipt-id", receipt);
+        }
+        error.addHeader("message", summary);
+        return error.setBody("The message:\n-----\n"+message+"\n-----\n"+description);
+
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,47 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.impl.stomp.Frame.Command;
+import bgu.spl.net.srv.metrics.LatencyHistogram;
+import bgu.spl.net.srv.metrics.ServerMetrics;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+//the STOMP metrics, looked up once and indexed by command so counting a frame is one array read and one add
+final class StompMetrics {
+
+    static final LongAdder[] FRAMES_IN = counters("stomp.frames.in.", Command.CONNECT, Command.STOMP, Command.SEND, Command.SUBSCRIBE,
+            Command.UNSUBSCRIBE, Command.ACK, Command.NACK, Command.BEGIN, Command.COMMIT, Command.ABORT, Command.DISCONNECT);
+    static final LongAdder[] FRAMES_OUT = counters("stomp.frames.out.", Command.CONNECTED, Command.MESSAGE, Command.RECEIPT, Command.ERROR);
+    static final LatencyHistogram[] PROCESS_NANOS = histograms("stomp.process.nanos.");
+    static final LongAdder BYTES_IN = ServerMetrics.get().counter("stomp.bytes.in");
+    static final LongAdder BYTES_OUT = ServerMetrics.get().counter("stomp.bytes.out");
+    static final LongAdder METRICS_REQUESTS = ServerMetrics.get().counter("stomp.metrics.requests");
+    static final LongAdder SUMMARY_REQUESTS = ServerMetrics.get().counter("stomp.summary.requests");
+
+    private StompMetrics() {
+    }
+
+    static void countOut(Command command, long bytes) {
+        FRAMES_OUT[command.ordinal()].increment();
+        BYTES_OUT.add(bytes);
+    }
+
+    //a counter for each of the commands expected in that direction, the rest share prefix + "other"
+    private static LongAdder[] counters(String prefix, Command... expected) {
+        LongAdder[] counters = new LongAdder[Command.values().length];
+        Arrays.fill(counters, ServerMetrics.get().counter(prefix + "other"));
+        for (Command command : expected) {
+            counters[command.ordinal()] = ServerMetrics.get().counter(prefix + command);
+        }
+        return counters;
+    }
+
+    private static LatencyHistogram[] histograms(String prefix) {
+        Command[] commands = Command.values();
+        LatencyHistogram[] histograms = new LatencyHistogram[commands.length];
+        for (Command command : commands) {
+            histograms[command.ordinal()] = ServerMetrics.get().histogram(prefix + command);
+        }
+        return histograms;
+    }
+}
@@ -1,6 +1,9 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.srv.OutboundPolicy;
 import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.metrics.ServerMetrics;
+import java.nio.ByteBuffer;
 
 public class StompServer {
 
@@ -15,16 +18,27 @@ public class StompServer {
 
         int port = Integer.parseInt(args[0]);
         String serverType = args[1];
-        Server<String> server;
+        Server<Frame> server;
         if (serverType.equals("tpc")) {
             server = Server.threadPerClient(port, StompMessagingProtocolImpl::new, StompEncoderDecoder::new);
+        } else if (serverType.equals("vthread")) {
+            server = Server.virtualThreadPerClient(port, StompMessagingProtocolImpl::new, StompEncoderDecoder::new);
         } else if (serverType.equals("reactor")){
-            server = Server.reactor(Runtime.getRuntime().availableProcessors(), port, StompMessagingProtocolImpl::new, StompEncoderDecoder::new);
+            //optional third argument: the number of I/O loops (selector threads), one by default
+            int ioLoops = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+            //what to do with a client that does not read its messages, set by the stomp.outbound.* properties
+            Frame slowConsumerError = new Frame(Frame.Command.ERROR).addHeader("message", "slow consumer")
+                    .setBody("The server closed the connection because the client did not read its messages.");
+            OutboundPolicy outboundPolicy = OutboundPolicy.fromSystemProperties(ByteBuffer.wrap(new StompEncoderDecoder().encode(slowConsumerError)));
+            server = Server.reactor(Runtime.getRuntime().availableProcessors(), ioLoops, port, StompMessagingProtocolImpl::new, StompEncoderDecoder::new,
+                    outboundPolicy);
         }
         else {
             System.out.println("Invalid server type");
             return;
         }
+        //jconsole or any JMX client can read the metrics, clients can also SEND to /$SYS/metrics
+        ServerMetrics.get().registerMBean();
         server.serve();
     }
 }
\ No newline at end of file
@@ -0,0 +1,31 @@
+package bgu.spl.net.srv;
+
+/**
+ * How the client of a subscription acknowledges its messages, the ack header of SUBSCRIBE.
+ */
+public enum AckMode {
+    /** the message counts as delivered once it is sent */
+    AUTO("auto"),
+    /** an ACK or NACK covers the message and every message sent before it on the subscription */
+    CLIENT("client"),
+    /** an ACK or NACK covers only that message */
+    CLIENT_INDIVIDUAL("client-individual");
+
+    private final String header;
+
+    AckMode(String header) {
+        this.header = header;
+    }
+
+    /**
+     * @return the mode named by the header value, null if there is no such mode
+     */
+    public static AckMode fromHeader(String header) {
+        for (AckMode mode : values()) {
+            if (mode.header.equals(header)) {
+                return mode;
+            }
+        }
+        return null;
+    }
+}
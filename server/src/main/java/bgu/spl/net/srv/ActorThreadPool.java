@@ -1,77 +1,88 @@
 package bgu.spl.net.srv;
 
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
+import bgu.spl.net.srv.metrics.ServerMetrics;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Runs the tasks of every actor in the order they were submitted and never two tasks of the same actor at once.
+ * Each actor has its own Mailbox, a pool thread takes a turn on an actor, runs up to tasksPerTurn of its tasks,
+ * and if more are waiting puts the actor back at the end of the pool queue so other actors get their turn.
+ */
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
-    private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
+    private static final LongAdder TASKS_SUBMITTED = ServerMetrics.get().counter("pool.tasks.submitted");
+    private static final LongAdder TASKS_RUN = ServerMetrics.get().counter("pool.tasks.run");
+    private static final LongAdder TURNS = ServerMetrics.get().counter("pool.turns");
+
+    static {
+        //tasks waiting in the mailboxes of all actors, a growing backlog means the pool cannot keep up
+        ServerMetrics.get().gauge("pool.backlog", () -> TASKS_SUBMITTED.sum() - TASKS_RUN.sum());
+    }
+
     private final ExecutorService threads;
+    private final int tasksPerTurn;
 
     public ActorThreadPool(int threads) {
-        this.threads = Executors.newFixedThreadPool(threads);
-        acts = new WeakHashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
-        actsRWLock = new ReentrantReadWriteLock();
+        this(threads, 1);
     }
 
-    public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
-            }
-        }
+    /**
+     * @param tasksPerTurn how many tasks of one actor run before the thread moves on to the next actor.
+     *                     1 gives every actor a turn per task, more saves scheduling work for busy actors
+     */
+    public ActorThreadPool(int threads, int tasksPerTurn) {
+        this(Executors.newFixedThreadPool(threads), tasksPerTurn);
     }
 
-    public void shutdown() {
-        threads.shutdownNow();
+    /**
+     * @param threads runs the turns, with a virtual thread per task an actor that blocks holds up no other actor
+     */
+    ActorThreadPool(ExecutorService threads, int tasksPerTurn) {
+        this.threads = threads;
+        this.tasksPerTurn = Math.max(1, tasksPerTurn);
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
-
-        actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
-        actsRWLock.readLock().unlock();
-
-        if (pendingRunnables == null) {
-            actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
-            actsRWLock.writeLock().unlock();
+    public void submit(Mailbox act, Runnable r) {
+        TASKS_SUBMITTED.increment();
+        act.push(r);
+        if (act.trySchedule()) {
+            execute(act);
         }
-        return pendingRunnables;
     }
 
-    private void execute(Runnable r, Object act) {
+    public void shutdown() {
+        threads.shutdownNow();
+    }
+
+    private void execute(Mailbox act) {
         threads.execute(() -> {
+            TURNS.increment();
             try {
-                r.run();
+                for (int i = 0; i < tasksPerTurn; i++) {
+                    Runnable r = act.poll();
+                    if (r == null) {
+                        break;
+                    }
+                    TASKS_RUN.increment();
+                    try {
+                        r.run();
+                    } catch (RuntimeException ex) {
+                        ex.printStackTrace(); //one failed task does not stop the rest of the actor's tasks
+                    }
+                }
             } finally {
                 complete(act);
             }
         });
     }
 
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
-            }
+    private void complete(Mailbox act) {
+        act.unschedule();
+        //a task pushed after our last poll saw the flag still set and did not schedule, so check again
+        if (act.hasPending() && act.trySchedule()) {
+            execute(act);
         }
     }
 
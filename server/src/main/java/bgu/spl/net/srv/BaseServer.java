@@ -53,6 +53,9 @@ public abstract class BaseServer<T> implements Server<T> {
 
                 connectionsImpl.addHandler(connectionId, handler);
                 protocol.start(connectionId, connectionsImpl);
+                //a client that goes away without DISCONNECT is logged out too
+                int handlerId = connectionId;
+                handler.onClose(() -> connectionsImpl.disconnect(handlerId));
 
                 connectionId++;
                 execute(handler);
@@ -2,19 +2,34 @@ package bgu.spl.net.srv;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
+import bgu.spl.net.srv.metrics.LatencyHistogram;
+import bgu.spl.net.srv.metrics.ServerMetrics;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int READ_BUFFER_SIZE = 1 << 13; //8k
+    //how long a frame took to get into the socket, a slow client shows up here as the sender waiting for it
+    private static final LatencyHistogram WRITE_NANOS = ServerMetrics.get().histogram("blocking.write.nanos");
+
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
     private BufferedInputStream in;
     private BufferedOutputStream out;
     private volatile boolean connected = true;
+    //a lock and not synchronized: a virtual thread blocked on the socket inside synchronized would pin its carrier thread
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile Runnable onClose; //set before the handler runs
+    //the writes the callers do not wait for, in order per connection. a client that does not read parks only its own virtual thread
+    private static final ActorThreadPool ASYNC_WRITES = new ActorThreadPool(Executors.newVirtualThreadPerTaskExecutor(), 16);
+    private final Mailbox asyncWrites = new Mailbox();
 
     public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol) {
         this.sock = sock;
@@ -26,28 +41,45 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     public void run() {
         try (Socket sock = this.sock) { //just for automatic closing
             int read;
+            byte[] readBytes = new byte[READ_BUFFER_SIZE];
+            ByteBuffer readBuffer = ByteBuffer.wrap(readBytes);
 
             in = new BufferedInputStream(sock.getInputStream());
             out = new BufferedOutputStream(sock.getOutputStream());
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
+            while (!protocol.shouldTerminate() && connected && (read = in.read(readBytes)) >= 0) {
+                readBuffer.clear();
+                readBuffer.limit(read);
+                for (T nextMessage : encdec.decode(readBuffer)) {
+                    if (protocol.shouldTerminate()) {
+                        break; //the rest of the chunk belongs to a connection we are closing
+                    }
                     T response = protocol.process(nextMessage);
                     //do not write response in case of an error
                     if (response != null) {
-                        out.write(encdec.encode(response));
-                        out.flush();
+                        send(response);
                     }
                 }
             }
 
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            Runnable cleanup = onClose;
+            if (cleanup != null) {
+                cleanup.run();
+            }
         }
 
     }
 
+    /**
+     * runs on this handler's thread once the connection is closed, whatever closed it: the client, an I/O error or the protocol
+     */
+    /*package*/ void onClose(Runnable cleanup) {
+        this.onClose = cleanup;
+    }
+
     @Override
     public void close() throws IOException {
         connected = false;
@@ -56,13 +88,43 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
     @Override
     public void send(T msg) {
-        //IMPLEMENT IF NEEDED
+        //locked so frames sent by other connections' threads do not interleave with ours
+        long started = System.nanoTime();
+        writeLock.lock();
         try {
             this.out.write(this.encdec.encode(msg));//encode the message and write it to the socket
             this.out.flush(); //flush the buffer
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            writeLock.unlock();
         }
+        WRITE_NANOS.record(System.nanoTime() - started);
 
     }
+
+    @Override
+    public void sendEncoded(ByteBuffer... frame) {
+        long started = System.nanoTime();
+        writeLock.lock();
+        try {
+            for (ByteBuffer part : frame) {
+                //write straight from the shared array, the buffer position is left untouched
+                this.out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+            }
+            this.out.flush();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            writeLock.unlock();
+        }
+        WRITE_NANOS.record(System.nanoTime() - started);
+    }
+
+    @Override
+    public void sendEncodedAsync(int stream, ByteBuffer... frame) {
+        if (connected) {
+            ASYNC_WRITES.submit(asyncWrites, () -> sendEncoded(frame));
+        }
+    }
 }
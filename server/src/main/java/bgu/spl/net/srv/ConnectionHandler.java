@@ -6,6 +6,7 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +20,53 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * sends a frame that was already encoded by the caller.
+     * the (heap) buffers are written in order as one frame and their content must not be modified,
+     * so the same bytes can be shared by many handlers (each one gets its own duplicate).
+     *
+     * @param frame the encoded frame parts
+     */
+    void sendEncoded(ByteBuffer... frame);
+
+    /**
+     * the stream of a frame sent without one
+     */
+    int NO_STREAM = Integer.MIN_VALUE;
+
+    /**
+     * sends an encoded frame of one stream, in STOMP the subscription it is for. a CONFLATE outbound policy drops
+     * the waiting frames of the same stream first. a handler without such a policy ignores the stream
+     */
+    default void sendEncoded(int stream, ByteBuffer... frame) {
+        sendEncoded(frame);
+    }
+
+    /**
+     * like sendEncoded(stream, frame), but never makes the caller wait for the client: a handler that writes on the
+     * caller's thread writes the frame later, on a thread of the connection, in the order of these calls.
+     * for the timers that send to every connection, one client that stops reading must not hold up the others
+     */
+    default void sendEncodedAsync(int stream, ByteBuffer... frame) {
+        sendEncoded(stream, frame);
+    }
+
+    /**
+     * @return true while frames sent to this handler would be refused because the client is not reading them.
+     *         a handler that makes the sender wait instead never is
+     */
+    default boolean isBackpressured() {
+        return false;
+    }
+
+    /**
+     * starts heart-beating: the handler sends the beat when it wrote nothing for sendMillis,
+     * and closes the connection when it read nothing for too long past receiveMillis. 0 turns a direction off
+     *
+     * @return false if this handler cannot heart-beat, the peer must not expect any
+     */
+    default boolean startHeartBeat(long sendMillis, long receiveMillis, byte[] beat) {
+        return false;
+    }
+
 }
@@ -1,26 +1,105 @@
 package bgu.spl.net.srv;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.function.LongFunction;
 
 public interface Connections<T> {
 
     void addHandler(int connectionId, ConnectionHandler<T> handler);
     boolean send(int connectionId, T msg);
+    boolean sendEncoded(int connectionId, ByteBuffer... frame);
+    //a frame of one stream, the subscription it is for: a slow client may conflate the frames of a stream
+    boolean sendEncoded(int connectionId, int stream, ByteBuffer... frame);
 
     void send(String channel, T msg);
 
     void disconnect(int connectionId);
     boolean isUserSubscribed(String channel, int connectionId);
     int getSubscriptionId(String channel, int connectionId);
-    List<Integer> getSubscribedId(String channel);
+    //the current subscribers of the channel, the snapshot does not change after it is returned
+    Subscribers getSubscribers(String channel);
     void connect(int connectionId,String username);
     boolean isValidUser(int connectionId,String username, String password);
     boolean isUniqeUser(String username);
     void addUser(int connectionId, String username, String password, ConnectionHandler<T> connectionHandler);
+
+    /**
+     * starts the resumable session of a connection that just logged in
+     * @return its token for the CONNECTED frame, null if sessions cannot be resumed
+     */
+    String startSession(int connectionId);
+
+    /**
+     * takes over the session of the token, if its connection went away without DISCONNECT within the grace period.
+     * restoreSubscriptions joins its subscriptions again
+     * @return false if the token names no such session of the connection's user
+     */
+    boolean resumeSession(int connectionId, String token);
+
+    /**
+     * the client said DISCONNECT: when the connection goes its session ends with it and cannot be resumed
+     */
+    void endSession(int connectionId);
+
+    /**
+     * joins the logged in connection to the subscriptions of the session it resumed, sending it the messages it missed
+     * meanwhile, or else to those its user had when the server last stopped, if the server keeps them.
+     * called after CONNECTED is sent, their messages must not come before it
+     * @return how many subscriptions were restored
+     */
+    int restoreSubscriptions(int connectionId);
     ConnectionHandler<T> getHandler(int connectionId);
     String subscribeUser(int connectionId, String channel, int subscriptionId);
 
-    int getMessageId();
-    int incrementMessageId();
+    /**
+     * subscribes like subscribeUser, the client acknowledges the messages of the subscription as ackMode says.
+     * with a selector (its canonical text) the subscription only gets the messages the selector matches, null for all of them
+     */
+    String subscribeUser(int connectionId, String channel, int subscriptionId, AckMode ackMode, String selector);
+
+    /**
+     * subscribes like subscribeUser and also sends the connection those of the channel's last recentMessages messages
+     * it did not get live. history frames may arrive after the first live ones, the message-ids give the order
+     */
+    String subscribeUser(int connectionId, String channel, int subscriptionId, AckMode ackMode, String selector, int recentMessages);
+
+    /**
+     * subscribes like subscribeUser and first sends the connection the messages the channel's event log holds
+     * with an id of at least fromMessageId, stored at sinceMillis or later. every message reaches the new subscriber
+     * exactly once, replayed or live. without an event log it is a plain subscribe
+     */
+    String subscribeUser(int connectionId, String channel, int subscriptionId, AckMode ackMode, String selector, long fromMessageId, long sinceMillis);
+
+    /**
+     * publishes one message on the channel: takes the next message id, lets the caller encode the part of the MESSAGE
+     * frame all subscribers share with it, stores that part in the channel's event log if the server keeps one,
+     * and returns it with the subscribers that get it live
+     */
+    Publication publish(String channel, LongFunction<ByteBuffer> encodeSharedPart);
+
+    /**
+     * publishes count messages on the channel like publish, with contiguous message ids and one subscribers snapshot
+     * for all of them. encodeSharedPart is called with the ids in order
+     */
+    Publication publish(String channel, int count, LongFunction<ByteBuffer> encodeSharedPart);
+
+    /**
+     * sends a MESSAGE on a subscription that acknowledges and keeps it until the client acknowledges it,
+     * sending it again when the client NACKs it or does not answer in time
+     */
+    boolean sendForAck(int connectionId, int subscriptionId, long messageId, ByteBuffer head, ByteBuffer sharedPart);
+
+    /**
+     * an ACK (accepted) or NACK from the client
+     * @return false if the connection has no message with that id waiting for an acknowledgement
+     */
+    boolean acknowledge(int connectionId, long messageId, boolean accepted);
+
+    /**
+     * reserves count contiguous message ids on the channel, for a message that is not published (an answer to one client).
+     * the ids of a channel only grow, and no two messages of any channels get the same id
+     * @return the first of them
+     */
+    long reserveMessageIds(String channel, int count);
 
     boolean unsubscribe(int connectionId, int subscribeId);
     boolean isUserConnected(String string);
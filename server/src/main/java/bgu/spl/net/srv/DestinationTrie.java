@@ -0,0 +1,212 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.srv.metrics.ServerMetrics;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The wildcard subscriptions, in a trie of destination segments. Destinations are hierarchical, their segments are
+ * separated by '/'. In a subscription '*' matches exactly one segment and a last segment '#' matches any number
+ * of segments, none included: police/* matches police/north, police/# matches police, police/north and police/north/3.
+ * The subscribers a concrete destination gets from the wildcards are cached per destination, so a publish costs
+ * one map lookup while the subscriptions do not change, whatever their number. The cache is emptied when the
+ * wildcard subscriptions change, and holds at most stomp.wildcard.cache.destinations destinations (10000 by default):
+ * past that it starts over, so publishing to ever new destinations does not grow it.
+ */
+public final class DestinationTrie {
+
+    public static final char SEPARATOR = '/';
+    public static final String ANY_SEGMENT = "*";
+    public static final String ANY_SEGMENTS = "#";
+    public static final String CACHE_DESTINATIONS_PROPERTY = "stomp.wildcard.cache.destinations";
+
+    private static final LongAdder CACHE_MISSES = ServerMetrics.get().counter("destinations.match.cache.misses");
+
+    private final Node root = new Node();
+    //subscribing and unsubscribing take the lock, matching walks the trie without it
+    private final ReentrantLock lock = new ReentrantLock();
+    //changed after every change of the trie, a cached match of an older version is computed again
+    private volatile long version = 0;
+    private volatile int patterns = 0;
+    private final Map<String, Match> matches = new ConcurrentHashMap<>();//concrete destination, its last match
+    private final int maxCached;
+
+    public DestinationTrie() {
+        this(Integer.getInteger(CACHE_DESTINATIONS_PROPERTY, 10_000));
+    }
+
+    public DestinationTrie(int maxCached) {
+        this.maxCached = maxCached;
+        ServerMetrics.get().gauge("destinations.wildcard.subscriptions", () -> patterns);
+        ServerMetrics.get().gauge("destinations.match.cache.size", matches::size);
+    }
+
+    /**
+     * @return true if the destination has a wildcard segment
+     */
+    public static boolean isPattern(String destination) {
+        for (String segment : segments(destination)) {
+            if (segment.equals(ANY_SEGMENT) || segment.equals(ANY_SEGMENTS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if a '#' is not the last segment of the pattern
+     */
+    public static boolean isValidPattern(String pattern) {
+        String[] segments = segments(pattern);
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (segments[i].equals(ANY_SEGMENTS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the pattern matches the concrete destination
+     */
+    public static boolean matches(String pattern, String destination) {
+        String[] wanted = segments(pattern);
+        String[] segments = segments(destination);
+        for (int i = 0; i < wanted.length; i++) {
+            if (wanted[i].equals(ANY_SEGMENTS)) {
+                return true;
+            }
+            if (i == segments.length || !(wanted[i].equals(ANY_SEGMENT) || wanted[i].equals(segments[i]))) {
+                return false;
+            }
+        }
+        return wanted.length == segments.length;
+    }
+
+    public void subscribe(String pattern, int connectionId, int subscriptionId, AckMode ackMode, String selector) {
+        lock.lock();
+        try {
+            Node node = root;
+            String[] segments = segments(pattern);
+            boolean anySegments = segments[segments.length - 1].equals(ANY_SEGMENTS);
+            for (int i = 0; i < (anySegments ? segments.length - 1 : segments.length); i++) {
+                node = node.children.computeIfAbsent(segments[i], segment -> new Node());
+            }
+            if (anySegments) {
+                node.below = node.below.with(connectionId, subscriptionId, ackMode, selector);
+            } else {
+                node.here = node.here.with(connectionId, subscriptionId, ackMode, selector);
+            }
+            patterns++;
+            version++;
+            matches.clear(); //every cached match is of an older version now
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void unsubscribe(String pattern, int connectionId) {
+        lock.lock();
+        try {
+            Node node = root;
+            String[] segments = segments(pattern);
+            boolean anySegments = segments[segments.length - 1].equals(ANY_SEGMENTS);
+            for (int i = 0; i < (anySegments ? segments.length - 1 : segments.length) && node != null; i++) {
+                node = node.children.get(segments[i]);
+            }
+            if (node == null) {
+                return;
+            }
+            //the nodes stay, like the channels of the exact subscriptions
+            Subscribers before = anySegments ? node.below : node.here;
+            Subscribers after = before.without(connectionId);
+            if (after == before) {
+                return;
+            }
+            if (anySegments) {
+                node.below = after;
+            } else {
+                node.here = after;
+            }
+            patterns--;
+            version++;
+            matches.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param exact the subscribers of the destination itself
+     * @return the exact subscribers followed by those of every wildcard subscription that matches the destination
+     */
+    public Subscribers match(String destination, Subscribers exact) {
+        if (patterns == 0) {
+            return exact;
+        }
+        long matchedVersion = version; //read before the walk: a change during it makes the next publish walk again
+        Match match = matches.get(destination);
+        if (match != null && match.version == matchedVersion && match.exact == exact) {
+            return match.subscribers;
+        }
+        CACHE_MISSES.increment();
+        List<Subscribers> found = new ArrayList<>();
+        collect(root, segments(destination), 0, found);
+        Subscribers subscribers = exact;
+        for (Subscribers wildcard : found) {
+            subscribers = subscribers.plus(wildcard);
+        }
+        if (matches.size() >= maxCached) {
+            matches.clear(); //the destinations published since are cached again on their next publish
+        }
+        matches.put(destination, new Match(matchedVersion, exact, subscribers));
+        return subscribers;
+    }
+
+    //visits only the branches the destination can match, the literal segment and '*' at each level
+    private static void collect(Node node, String[] segments, int index, List<Subscribers> found) {
+        if (node.below.size() > 0) {
+            found.add(node.below);
+        }
+        if (index == segments.length) {
+            if (node.here.size() > 0) {
+                found.add(node.here);
+            }
+            return;
+        }
+        Node literal = node.children.get(segments[index]);
+        if (literal != null) {
+            collect(literal, segments, index + 1, found);
+        }
+        Node any = node.children.get(ANY_SEGMENT);
+        if (any != null && !segments[index].equals(ANY_SEGMENT)) {
+            collect(any, segments, index + 1, found);
+        }
+    }
+
+    private static String[] segments(String destination) {
+        return destination.split(String.valueOf(SEPARATOR), -1);
+    }
+
+    private static final class Node {
+        final Map<String, Node> children = new ConcurrentHashMap<>();
+        volatile Subscribers here = Subscribers.EMPTY; //the patterns that end at this node
+        volatile Subscribers below = Subscribers.EMPTY; //the patterns that end with '#' after this node
+    }
+
+    private static final class Match {
+        final long version;
+        final Subscribers exact;
+        final Subscribers subscribers;
+
+        Match(long version, Subscribers exact, Subscribers subscribers) {
+            this.version = version;
+            this.exact = exact;
+            this.subscribers = subscribers;
+        }
+    }
+}
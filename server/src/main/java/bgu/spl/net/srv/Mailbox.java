@@ -0,0 +1,73 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The pending tasks of one actor (a connection) in the ActorThreadPool.
+ * Any thread may add tasks, only the pool thread that currently owns the scheduled flag takes them out,
+ * so the queue is a lock-free multi producer / single consumer linked list (a producer swaps the tail, then links the old tail to its node).
+ */
+public final class Mailbox {
+
+    private static final class Node {
+        private Runnable task;
+        private volatile Node next;
+
+        private Node(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final AtomicReference<Node> tail;
+    private Node head; //only touched by the consumer, it is the last node already taken
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    public Mailbox() {
+        Node stub = new Node(null);
+        head = stub;
+        tail = new AtomicReference<>(stub);
+    }
+
+    /*package*/ void push(Runnable task) {
+        Node node = new Node(task);
+        Node previous = tail.getAndSet(node);
+        previous.next = node;
+    }
+
+    /**
+     * consumer only.
+     * @return the oldest task or null if there is none
+     */
+    /*package*/ Runnable poll() {
+        Node next = head.next;
+        if (next == null) {
+            if (tail.get() == head) {
+                return null;
+            }
+            //a producer swapped the tail but did not link its node yet, it is about to
+            while ((next = head.next) == null) {
+                Thread.onSpinWait();
+            }
+        }
+        head = next;
+        Runnable task = next.task;
+        next.task = null; //the node stays as the new head, do not keep the task alive
+        return task;
+    }
+
+    /*package*/ boolean hasPending() {
+        return tail.get() != head;
+    }
+
+    /**
+     * @return true if the caller now owns the mailbox and has to run it on the pool
+     */
+    /*package*/ boolean trySchedule() {
+        return !scheduled.get() && scheduled.compareAndSet(false, true);
+    }
+
+    /*package*/ void unschedule() {
+        scheduled.set(false);
+    }
+}
@@ -0,0 +1,77 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.srv.metrics.ServerMetrics;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out 64-bit message ids. Every channel takes its ids from a block of its own, reserved from one process wide
+ * counter, so the publishers of different channels do not touch the same counter and only meet on it once per block.
+ * A later block always starts after every earlier one: the ids of a channel keep growing, and no two messages of
+ * any channels share an id (the ack header and the kept messages of a user rely on that).
+ */
+public final class MessageIds {
+
+    static final String BLOCK_PROPERTY = "stomp.message.id.block";
+
+    private static final LongAdder BLOCKS = ServerMetrics.get().counter("message.ids.blocks");
+
+    private final AtomicLong reserved; //the first id no block holds yet
+    private final long blockSize;
+    private final Map<String, Sequence> sequences = new ConcurrentHashMap<>();//channel, its current block
+
+    /**
+     * @param firstId the lowest id to hand out, after the ones a previous run already used
+     */
+    public MessageIds(long firstId) {
+        this.reserved = new AtomicLong(firstId);
+        this.blockSize = Math.max(1, Long.getLong(BLOCK_PROPERTY, 1024));
+    }
+
+    /**
+     * reserves count contiguous ids on the channel
+     * @return the first of them
+     */
+    public long reserve(String channel, int count) {
+        return sequences.computeIfAbsent(channel, key -> new Sequence()).reserve(count);
+    }
+
+    private final class Sequence {
+        private volatile Block block = new Block(0, 0); //empty, the first reserve takes a real one
+        private final ReentrantLock lock = new ReentrantLock(); //only taken to replace a used up block
+
+        long reserve(int count) {
+            while (true) {
+                Block current = block;
+                long first = current.next.getAndAdd(count);
+                if (first + count <= current.limit) {
+                    return first;
+                }
+                //used up: the ids left in it stay unused, a batch is never split over two blocks
+                lock.lock();
+                try {
+                    if (block == current) {
+                        long size = Math.max(blockSize, count);
+                        block = new Block(reserved.getAndAdd(size), size);
+                        BLOCKS.increment();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private static final class Block {
+        final AtomicLong next;
+        final long limit;
+
+        Block(long first, long size) {
+            this.next = new AtomicLong(first);
+            this.limit = first + size;
+        }
+    }
+}
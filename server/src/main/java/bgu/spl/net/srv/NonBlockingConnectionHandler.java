@@ -2,6 +2,9 @@ package bgu.spl.net.srv;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
+import bgu.spl.net.srv.OutboundPolicy.Action;
+import bgu.spl.net.srv.metrics.LatencyHistogram;
+import bgu.spl.net.srv.metrics.ServerMetrics;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -9,27 +12,107 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
     private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    public static final int DEFAULT_HIGH_WATER_MARK = 1 << 20; //1MB waiting to be written
+
+    //the same numbers as the per connection fields, summed over all the connections of the process
+    private static final LongAdder QUEUED_FRAMES = ServerMetrics.get().counter("reactor.write.queue.frames");
+    private static final LongAdder QUEUED_BYTES = ServerMetrics.get().counter("reactor.write.queue.bytes");
+    private static final LongAdder REJECTED_FRAMES = ServerMetrics.get().counter("reactor.write.rejected.frames");
+    private static final LongAdder WRITTEN_BYTES = ServerMetrics.get().counter("reactor.write.bytes");
+    private static final LongAdder BLOCKED_FRAMES = ServerMetrics.get().counter("reactor.outbound.blocked.frames");
+    private static final LatencyHistogram BLOCKED_NANOS = ServerMetrics.get().histogram("reactor.outbound.blocked.nanos");
+    private static final LongAdder DROPPED_FRAMES = ServerMetrics.get().counter("reactor.outbound.dropped.frames");
+    private static final LongAdder CONFLATED_FRAMES = ServerMetrics.get().counter("reactor.outbound.conflated.frames");
+    private static final LongAdder DISCONNECTS = ServerMetrics.get().counter("reactor.outbound.disconnects");
+    private static final LongAdder SLOW_CONNECTIONS = ServerMetrics.get().counter("reactor.outbound.slow.connections");
+    private static final LongAdder HEART_BEATS = ServerMetrics.get().counter("reactor.heartbeat.sent");
+    private static final LongAdder HEART_BEAT_TIMEOUTS = ServerMetrics.get().counter("reactor.heartbeat.timeouts");
+    private static final long BLOCK_PARK_NANOS = 100_000;
+    //how many receive intervals may pass without a byte from the client, beats are allowed to be late
+    private static final int RECEIVE_GRACE = 2;
+
+    static {
+        //size() walks the queue, fine for a snapshot
+        ServerMetrics.get().gauge("reactor.buffer.pool.size", () -> BUFFER_POOL.size());
+    }
 
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    //every outbound frame waits here (as the parts of one gathering write) until the selector thread writes it
+    private final Queue<Outbound> writeQueue = new ConcurrentLinkedQueue<>();
+    private Outbound writing; //the frame the selector thread started to write, only touched by it
+    private final AtomicLong queuedBytes = new AtomicLong(0);
+    //what the policy did to this connection
+    private final AtomicLong rejectedFrames = new AtomicLong(0);
+    private final AtomicLong blockedFrames = new AtomicLong(0);
+    private final AtomicLong droppedFrames = new AtomicLong(0);
+    private final AtomicLong conflatedFrames = new AtomicLong(0);
+    private final AtomicBoolean slow = new AtomicBoolean(false);
+    private final AtomicBoolean disconnecting = new AtomicBoolean(false);
+    private final OutboundPolicy policy;
+    private final long highWaterMark;
+    private volatile boolean closeRequested = false;
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final ReactorLoop loop;
+    private final Mailbox mailbox = new Mailbox(); //the protocol tasks of this connection waiting for the ActorThreadPool
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile Runnable onClose; //set before the first read
+    //heart-beating, all of it only touched by the selector thread. 0 nanos is a direction turned off
+    private TimingWheel.Timer sendTimer; //made by startHeartBeat, both only used on the selector thread
+    private TimingWheel.Timer receiveTimer;
+    private long sendNanos = 0;
+    private long receiveNanos = 0;
+    private byte[] beat;
+    private long lastReadNanos;
+    private long lastWriteNanos;
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             MessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor) {
+            ReactorLoop loop) {
+        this(reader, protocol, chan, loop, DEFAULT_HIGH_WATER_MARK);
+    }
+
+    public NonBlockingConnectionHandler(
+            MessageEncoderDecoder<T> reader,
+            MessagingProtocol<T> protocol,
+            SocketChannel chan,
+            ReactorLoop loop,
+            long highWaterMark) {
+        this(reader, protocol, chan, loop, new OutboundPolicy(Action.REJECT, highWaterMark, 0, null));
+    }
+
+    public NonBlockingConnectionHandler(
+            MessageEncoderDecoder<T> reader,
+            MessagingProtocol<T> protocol,
+            SocketChannel chan,
+            ReactorLoop loop,
+            OutboundPolicy policy) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
-        this.reactor = reactor;
+        this.loop = loop;
+        this.policy = policy;
+        this.highWaterMark = policy.getBudgetBytes();
+        this.lastReadNanos = System.nanoTime();
+        this.lastWriteNanos = lastReadNanos;
+    }
+
+    /**
+     * runs once the connection is closed, whatever closed it: the client, an I/O error, the protocol or a missed heart-beat
+     */
+    /*package*/ void onClose(Runnable cleanup) {
+        this.onClose = cleanup;
     }
 
     public Runnable continueRead() {
@@ -43,17 +126,14 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         }
 
         if (success) {
+            lastReadNanos = loop.now();
             buf.flip();
             return () -> {
                 try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            T response = protocol.process(nextMessage);
-                            if (response != null) {
-                                writeQueue.add(ByteBuffer.wrap(encdec.encode(response)));
-                                reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                            }
+                    for (T nextMessage : encdec.decode(buf)) {
+                        T response = protocol.process(nextMessage);
+                        if (response != null) {
+                            enqueue(true, ConnectionHandler.NO_STREAM, ByteBuffer.wrap(encdec.encode(response)));
                         }
                     }
                 } finally {
@@ -62,48 +142,202 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
             };
         } else {
             releaseBuffer(buf);
-            close();
+            closeNow();
             return null;
         }
 
     }
 
+    /**
+     * closes the connection once the frames already queued for it were written,
+     * so an ERROR sent right before closing still reaches the client.
+     */
     public void close() {
+        closeRequested = true;
+        if (queuedBytes.get() == 0) {
+            closeNow();
+        } else {
+            //continueWrite closes the channel when the queue drains. ask for it again in case
+            //the selector thread drained the queue just before we set the flag
+            loop.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void closeNow() {
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        Runnable cleanup = onClose;
+        if (cleanup != null && closed.compareAndSet(false, true)) {
+            cleanup.run();
+        }
+        //the frames that will never be written leave the process wide counts.
+        //with frames queued we only get here on the selector thread, the only one that writes frames
+        Outbound dropped;
+        while ((dropped = writeQueue.poll()) != null) {
+            if (dropped == writing || dropped.claim()) {
+                unqueue(frameSize(dropped.parts)); //what is left of it
+            } //else a publisher dropped it and took it out of the counts
+        }
+        writing = null;
+    }
+
+    private void unqueue(long size) {
+        queuedBytes.addAndGet(-size);
+        QUEUED_BYTES.add(-size);
+        QUEUED_FRAMES.decrement();
+    }
+
+    public Mailbox mailbox() {
+        return mailbox;
     }
 
     public boolean isClosed() {
         return !chan.isOpen();
     }
 
+    /**
+     * @return the number of bytes waiting to be written to this connection
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return true while the queued bytes are above the high-water mark, new frames are refused until it drains
+     */
+    @Override
+    public boolean isBackpressured() {
+        return queuedBytes.get() >= highWaterMark;
+    }
+
+    /**
+     * @return how many frames were refused because the connection was over its high-water mark
+     */
+    public long getRejectedFrames() {
+        return rejectedFrames.get();
+    }
+
+    /**
+     * @return how many published frames had to wait for this connection (BLOCK)
+     */
+    public long getBlockedFrames() {
+        return blockedFrames.get();
+    }
+
+    /**
+     * @return how many waiting frames were dropped to make room for newer ones (DROP_OLDEST, CONFLATE)
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * @return how many waiting frames were replaced by a newer frame of the same stream (CONFLATE)
+     */
+    public long getConflatedFrames() {
+        return conflatedFrames.get();
+    }
+
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
+        while (true) {
             try {
-                ByteBuffer top = writeQueue.peek();
-                if (!protocol.shouldTerminate()) {
-                    chan.write(top);
-                }else{
-                    break;
+                Outbound top = writing;
+                if (top == null) {
+                    top = writeQueue.peek();
+                    if (top == null) {
+                        break;
+                    }
+                    if (!top.claim()) {
+                        writeQueue.remove(top); //a publisher dropped it and is taking it out, maybe not yet
+                        continue;
+                    }
+                    writing = top;
+                }
+                long written = chan.write(top.parts);
+                if (written > 0) {
+                    lastWriteNanos = loop.now();
                 }
-                if (top.hasRemaining()) {
-                    return;
+                queuedBytes.addAndGet(-written);
+                QUEUED_BYTES.add(-written);
+                WRITTEN_BYTES.add(written);
+                if (top.parts[top.parts.length - 1].hasRemaining()) {
+                    return; //the socket is full, continue when it is writable again
                 } else {
-                    writeQueue.remove();
+                    writing = null;
+                    writeQueue.remove(top);
+                    QUEUED_FRAMES.decrement();
                 }
             } catch (IOException ex) {
                 ex.printStackTrace();
-                close();
+                closeNow();
+                return;
+            }
+        }
+
+        if (closeRequested || protocol.shouldTerminate()) closeNow();
+        else if (queuedBytes.get() == 0) loop.updateInterestedOps(chan, SelectionKey.OP_READ);
+        //else a sender counted its frame but did not queue it yet, and it saw bytes queued so it will not ask for a write.
+        //stay interested in writing and pick the frame up on the next round
+    }
+
+    @Override
+    public boolean startHeartBeat(long sendMillis, long receiveMillis, byte[] beat) {
+        loop.execute(() -> {
+            if (!chan.isOpen()) {
+                return;
             }
+            this.beat = beat;
+            sendNanos = sendMillis * 1_000_000;
+            receiveNanos = receiveMillis * 1_000_000;
+            if (sendNanos > 0) {
+                if (sendTimer == null) {
+                    sendTimer = new TimingWheel.Timer(this::sendHeartBeat);
+                }
+                loop.schedule(sendTimer, lastWriteNanos + sendNanos);
+            }
+            if (receiveNanos > 0) {
+                if (receiveTimer == null) {
+                    receiveTimer = new TimingWheel.Timer(this::checkHeartBeat);
+                }
+                loop.schedule(receiveTimer, lastReadNanos + RECEIVE_GRACE * receiveNanos);
+            }
+        });
+        return true;
+    }
+
+    //the send timer: a beat if nothing was written for a whole interval. with frames still queued the client
+    //is not reading them, a beat behind them would not reach it either
+    private void sendHeartBeat() {
+        if (!chan.isOpen()) {
+            return; //the timer is not scheduled again
+        }
+        long now = loop.now();
+        if (now - lastWriteNanos < sendNanos) {
+            loop.schedule(sendTimer, lastWriteNanos + sendNanos);
+            return;
         }
+        if (queuedBytes.get() == 0) {
+            HEART_BEATS.increment();
+            enqueue(true, ConnectionHandler.NO_STREAM, ByteBuffer.wrap(beat));
+        }
+        loop.schedule(sendTimer, now + sendNanos);
+    }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+    //the receive timer: the client is gone (or the connection half open) when it sent nothing for too long
+    private void checkHeartBeat() {
+        if (!chan.isOpen()) {
+            return;
+        }
+        long deadline = lastReadNanos + RECEIVE_GRACE * receiveNanos;
+        if (loop.now() < deadline) {
+            loop.schedule(receiveTimer, deadline);
+            return;
         }
+        HEART_BEAT_TIMEOUTS.increment();
+        closeNow();
     }
 
     private static ByteBuffer leaseBuffer() {
@@ -122,17 +356,160 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     @Override
     public void send(T msg) {
-        //will write without checking if the connection is open
+        enqueue(true, ConnectionHandler.NO_STREAM, ByteBuffer.wrap(this.encdec.encode(msg)));
+    }
 
-        // this.writeQueue.add(ByteBuffer.wrap(this.encdec.encode(msg)));
-        // this.reactor.updateInterestedOps(this.chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);//update the reactor that the channel is ready to write and read
+    @Override
+    public void sendEncoded(ByteBuffer... frame) {
+        enqueue(false, ConnectionHandler.NO_STREAM, frame);
+    }
 
-        try {
-            chan.write(ByteBuffer.wrap(this.encdec.encode(msg)));
-        } catch (IOException e) {
-            e.printStackTrace();
+    @Override
+    public void sendEncoded(int stream, ByteBuffer... frame) {
+        enqueue(false, stream, frame);
+    }
+
+    //called from any thread. never writes to the socket itself, so a slow client cannot stall the caller
+    //(unless the policy is BLOCK, and then only for the block time of the fan-out)
+    private void enqueue(boolean critical, int stream, ByteBuffer... frame) {
+        if (closeRequested || !chan.isOpen()) {
+            return;
+        }
+        long size = frameSize(frame);
+        if (!critical && !hasRoom(size) && !makeRoom(size, stream)) {
+            return;
+        }
+        //count the bytes before the frame becomes visible to the selector thread, so the count never goes below what is queued
+        boolean wasEmpty = queuedBytes.addAndGet(size) == size;
+        QUEUED_BYTES.add(size);
+        QUEUED_FRAMES.increment();
+        writeQueue.add(new Outbound(frame, size, critical, stream));
+        if (wasEmpty) {
+            //ask the selector thread to start writing
+            loop.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         }
-        this.reactor.updateInterestedOps(this.chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);//update the reactor that the channel is ready to write and read
+    }
+
+    //a single frame is always accepted
+    private boolean hasRoom(long size) {
+        long queued = queuedBytes.get();
+        return queued == 0 || size <= highWaterMark - queued;
+    }
 
+    //the client is not reading: applies the policy, true if the frame may be queued after all
+    private boolean makeRoom(long size, int stream) {
+        if (slow.compareAndSet(false, true)) {
+            SLOW_CONNECTIONS.increment();
+        }
+        switch (policy.getAction()) {
+            case BLOCK:
+                blockedFrames.incrementAndGet();
+                BLOCKED_FRAMES.increment();
+                long started = System.nanoTime();
+                long deadline = policy.blockDeadline(started);//shared by the connections of one fan-out
+                while (!hasRoom(size) && chan.isOpen() && System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                }
+                BLOCKED_NANOS.record(System.nanoTime() - started);
+                if (hasRoom(size)) {
+                    return true;
+                }
+                break;
+            case CONFLATE:
+                if (stream != ConnectionHandler.NO_STREAM) {
+                    dropWaiting(size, true, stream);
+                    if (hasRoom(size)) {
+                        return true;
+                    }
+                }
+                //other streams hold the bytes, make room like DROP_OLDEST
+                dropWaiting(size, false, ConnectionHandler.NO_STREAM);
+                if (hasRoom(size)) {
+                    return true;
+                }
+                break;
+            case DROP_OLDEST:
+                dropWaiting(size, false, ConnectionHandler.NO_STREAM);
+                if (hasRoom(size)) {
+                    return true;
+                }
+                break;
+            case DISCONNECT:
+                disconnectSlowConsumer();
+                return false;
+            default:
+                break;
+        }
+        //the client is not reading, refuse the frame instead of growing the queue
+        rejectedFrames.incrementAndGet();
+        REJECTED_FRAMES.increment();
+        return false;
+    }
+
+    //drops waiting published frames, oldest first, until the new frame fits. with sameStream only the frames of that stream
+    private void dropWaiting(long size, boolean sameStream, int stream) {
+        for (Outbound waiting : writeQueue) {
+            if (hasRoom(size)) {
+                return;
+            }
+            if (waiting.critical || (sameStream && waiting.stream != stream) || !waiting.claim()) {
+                continue; //a reply, another stream, or being written
+            }
+            writeQueue.remove(waiting);
+            unqueue(waiting.size);
+            droppedFrames.incrementAndGet();
+            DROPPED_FRAMES.increment();
+            if (sameStream) {
+                conflatedFrames.incrementAndGet();
+                CONFLATED_FRAMES.increment();
+            }
+        }
+    }
+
+    private void disconnectSlowConsumer() {
+        if (!disconnecting.compareAndSet(false, true)) {
+            return;
+        }
+        DISCONNECTS.increment();
+        dropWaiting(Long.MAX_VALUE, false, ConnectionHandler.NO_STREAM); //the disconnect frame should not wait behind them
+        ByteBuffer disconnectFrame = policy.newDisconnectFrame();
+        if (disconnectFrame != null) {
+            enqueue(true, ConnectionHandler.NO_STREAM, disconnectFrame);
+        }
+        closeRequested = true;
+        //the client is not reading, waiting for the queue to drain could take forever.
+        //write what fits into the socket now and close
+        loop.execute(() -> {
+            continueWrite();
+            closeNow();
+        });
+    }
+
+    //a frame waiting to be written. the selector thread claims it before writing it, a publisher before dropping it
+    private static final class Outbound {
+        final ByteBuffer[] parts;
+        final long size;
+        final boolean critical; //a reply of the protocol, never dropped
+        final int stream; //what CONFLATE compares, in STOMP the subscription id
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        Outbound(ByteBuffer[] parts, long size, boolean critical, int stream) {
+            this.parts = parts;
+            this.size = size;
+            this.critical = critical;
+            this.stream = stream;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+
+    private static long frameSize(ByteBuffer[] frame) {
+        long size = 0;
+        for (ByteBuffer part : frame) {
+            size += part.remaining();
+        }
+        return size;
     }
 }
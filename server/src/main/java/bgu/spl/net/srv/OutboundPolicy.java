@@ -0,0 +1,118 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a reactor connection does with a published frame when more than its budget of bytes already waits to be written
+ * to a client that does not read them. The replies of the protocol (receipts, errors) are never refused or dropped,
+ * the policy only applies to published frames (sendEncoded).
+ */
+public final class OutboundPolicy {
+
+    public static final String ACTION_PROPERTY = "stomp.outbound.policy";
+    public static final String BYTES_PROPERTY = "stomp.outbound.bytes";
+    public static final String BLOCK_MILLIS_PROPERTY = "stomp.outbound.block.millis";
+
+    public enum Action {
+        /** refuse the new frame */
+        REJECT,
+        /**
+         * make the publisher wait for the client to catch up, then refuse the frame. the wait is bounded by the block time
+         * per fan-out: inside startFanOut/endFanOut every slow connection shares one deadline, outside it each frame has its own
+         */
+        BLOCK,
+        /** drop the oldest published frames that were not started yet to make room */
+        DROP_OLDEST,
+        /** drop the waiting frames of the same stream (in STOMP the subscription id the sender gave), then the oldest */
+        CONFLATE,
+        /** drop what waits, send the disconnect frame and close the connection */
+        DISCONNECT
+    }
+
+    //the fan-out the publishing thread is in, if any
+    private static final ThreadLocal<FanOut> FAN_OUT = ThreadLocal.withInitial(FanOut::new);
+
+    private final Action action;
+    private final long budgetBytes;
+    private final long blockNanos;
+    private final ByteBuffer disconnectFrame;
+
+    /**
+     * @param budgetBytes how many bytes may wait to be written to one connection
+     * @param blockMillis how long BLOCK makes the publisher wait
+     * @param disconnectFrame the encoded frame DISCONNECT sends before closing, null to just close
+     */
+    public OutboundPolicy(Action action, long budgetBytes, long blockMillis, ByteBuffer disconnectFrame) {
+        this.action = action;
+        this.budgetBytes = budgetBytes;
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+        this.disconnectFrame = disconnectFrame;
+    }
+
+    /**
+     * @return the policy set by the stomp.outbound.* system properties, refusing frames over 1MB by default
+     */
+    public static OutboundPolicy fromSystemProperties(ByteBuffer disconnectFrame) {
+        String action = System.getProperty(ACTION_PROPERTY, "reject");
+        return new OutboundPolicy(Action.valueOf(action.trim().toUpperCase(Locale.ROOT).replace('-', '_')),
+                Long.getLong(BYTES_PROPERTY, NonBlockingConnectionHandler.DEFAULT_HIGH_WATER_MARK),
+                Long.getLong(BLOCK_MILLIS_PROPERTY, 50),
+                disconnectFrame);
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public long getBlockNanos() {
+        return blockNanos;
+    }
+
+    /**
+     * Starts publishing one message to many connections on this thread. Until endFanOut, BLOCK waits at most the block time
+     * in total, counted from the first connection that makes it wait, and not the block time for every slow connection in turn.
+     */
+    public static void startFanOut() {
+        FanOut fanOut = FAN_OUT.get();
+        fanOut.active = true;
+        fanOut.blocked = false;
+    }
+
+    public static void endFanOut() {
+        FAN_OUT.get().active = false;
+    }
+
+    /**
+     * @return until when BLOCK may wait, for a frame that starts waiting now
+     */
+    long blockDeadline(long now) {
+        FanOut fanOut = FAN_OUT.get();
+        if (!fanOut.active) {
+            return now + blockNanos;
+        }
+        if (!fanOut.blocked) {
+            fanOut.blocked = true;
+            fanOut.deadline = now + blockNanos;
+        }
+        return fanOut.deadline;
+    }
+
+    /**
+     * @return the disconnect frame for one connection to write, null if there is none
+     */
+    public ByteBuffer newDisconnectFrame() {
+        return disconnectFrame == null ? null : disconnectFrame.duplicate();
+    }
+
+    private static final class FanOut {
+        boolean active;
+        boolean blocked;
+        long deadline;
+    }
+}
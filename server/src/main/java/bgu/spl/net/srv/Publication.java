@@ -0,0 +1,42 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+
+//published messages: the encoded part of each MESSAGE frame shared by every subscriber and who gets them live
+public final class Publication {
+
+    private final ByteBuffer[] sharedParts;
+    private final long firstMessageId;
+    private final Subscribers subscribers;
+
+    public Publication(ByteBuffer[] sharedParts, long firstMessageId, Subscribers subscribers) {
+        this.sharedParts = sharedParts;
+        this.firstMessageId = firstMessageId;
+        this.subscribers = subscribers;
+    }
+
+    /**
+     * @return how many messages were published, a batch has contiguous message ids in this order
+     */
+    public int size() {
+        return sharedParts.length;
+    }
+
+    /**
+     * @return the shared part of a message, every subscriber has to be sent its own duplicate
+     */
+    public ByteBuffer getSharedPart(int index) {
+        return sharedParts[index];
+    }
+
+    /**
+     * @return the message id of the message at index i is this plus i
+     */
+    public long getFirstMessageId() {
+        return firstMessageId;
+    }
+
+    public Subscribers getSubscribers() {
+        return subscribers;
+    }
+}
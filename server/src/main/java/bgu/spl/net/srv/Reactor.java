@@ -4,24 +4,23 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedSelectorException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Supplier;
 import bgu.spl.net.impl.stomp.ConnectionsImpl;
 
+//the thread calling serve() accepts clients and hands them round robin to the I/O loops, each running on its own thread
 public class Reactor<T> implements Server<T> {
 
     private final int port;
     private final Supplier<MessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
-    private Selector selector;
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final int ioLoops;
+    private final OutboundPolicy outboundPolicy;
+    private ReactorLoop[] loops;
+    private ServerSocketChannel serverSock;
 
 
     private final ConnectionsImpl<T> connectionsImpl = new ConnectionsImpl<>();
@@ -33,8 +32,50 @@ public class Reactor<T> implements Server<T> {
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, 1, port, protocolFactory, readerFactory);
+    }
+
+    public Reactor(
+            int numThreads,
+            int ioLoops,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, ioLoops, port, protocolFactory, readerFactory, NonBlockingConnectionHandler.DEFAULT_HIGH_WATER_MARK);
+    }
+
+    /**
+     * @param numThreads number of threads for protocol processing
+     * @param ioLoops number of selector threads that do the reads and writes of the connections
+     * @param outboundHighWaterMark how many bytes may wait to be written to one connection before frames to it are refused
+     */
+    public Reactor(
+            int numThreads,
+            int ioLoops,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            long outboundHighWaterMark) {
+        this(numThreads, ioLoops, port, protocolFactory, readerFactory,
+                new OutboundPolicy(OutboundPolicy.Action.REJECT, outboundHighWaterMark, 0, null));
+    }
+
+    /**
+     * @param numThreads number of threads for protocol processing
+     * @param ioLoops number of selector threads that do the reads and writes of the connections
+     * @param outboundPolicy what a connection does with published frames its client is not reading fast enough
+     */
+    public Reactor(
+            int numThreads,
+            int ioLoops,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            OutboundPolicy outboundPolicy) {
 
         this.pool = new ActorThreadPool(numThreads);
+        this.ioLoops = Math.max(1, ioLoops);
+        this.outboundPolicy = outboundPolicy;
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
@@ -42,111 +83,83 @@ public class Reactor<T> implements Server<T> {
 
     @Override
     public void serve() {
-	selectorThread = Thread.currentThread();
-        try (Selector selector = Selector.open();
-                ServerSocketChannel serverSock = ServerSocketChannel.open()) {
-
-            this.selector = selector; //just to be able to close
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
 
+            this.serverSock = serverSock; //just to be able to close
 
+            loops = new ReactorLoop[ioLoops];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new ReactorLoop(pool);
+                new Thread(loops[i], "reactor-io-" + i).start();
+            }
 
             serverSock.bind(new InetSocketAddress(port));
-            serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
 			System.out.println("Server started");
 
             while (!Thread.currentThread().isInterrupted()) {
-
-                selector.select();
-                runSelectionThreadTasks();
-
-                for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
-                    }
-                }
-
-                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
-
+                handleAccept(serverSock.accept());
             }
 
-        } catch (ClosedSelectorException ex) {
+        } catch (AsynchronousCloseException ex) {
             //do nothing - server was requested to be closed
         } catch (IOException ex) {
             //this is an error
             ex.printStackTrace();
         }
 
+        closeLoops();
         System.out.println("server closed!!!");
         pool.shutdown();
     }
 
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                key.interestOps(ops);
-            });
-            selector.wakeup();
-        }
-    }
 
-
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
-        SocketChannel clientChan = serverChan.accept();
+    private void handleAccept(SocketChannel clientChan) throws IOException {
         clientChan.configureBlocking(false);
         MessagingProtocol<T> protocol = protocolFactory.get();
+        ReactorLoop loop = loops[connectionId % loops.length];
 
         final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
                 readerFactory.get(),
                 protocol,
                 clientChan,
-                this);
-
+                loop,
+                outboundPolicy);
 
+        //take the id now, the task runs later on a pool thread after more clients may have been accepted
+        final int handlerId = connectionId++;
         //submit the handler to the pool
-        this.pool.submit(handler, () -> {
-            protocol.start(connectionId, connectionsImpl);
-            connectionsImpl.addHandler(connectionId, handler);
+        this.pool.submit(handler.mailbox(), () -> {
+            protocol.start(handlerId, connectionsImpl);
+            connectionsImpl.addHandler(handlerId, handler);
         });
-        //increment the connectionId
-        connectionId++;
 
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
-    }
-
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
-
-        if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
-            }
-        }
+        //however the connection ends, its subscriptions go and its user is logged out, after the frames it already sent
+        handler.onClose(() -> pool.submit(handler.mailbox(), () -> connectionsImpl.disconnect(handlerId)));
 
-	    if (key.isValid() && key.isWritable()) {
-            handler.continueWrite();
-        }
+        //after the submit, so the pool runs start() before any read of this client
+        loop.register(clientChan, handler);
     }
 
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
+    private void closeLoops() {
+        if (loops == null) {
+            return;
+        }
+        for (ReactorLoop loop : loops) {
+            if (loop == null) {
+                continue;
+            }
+            try {
+                loop.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
         }
     }
 
     @Override
     public void close() throws IOException {
-        selector.close();
+        if (serverSock != null)
+            serverSock.close();
     }
 
 }
@@ -0,0 +1,139 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One I/O event loop of the reactor: a selector with its own thread and task queue.
+ * Every connection belongs to exactly one loop, which does all of its reads, writes and interest changes.
+ * The loop also drives the timers of its connections (heart-beats), on a hashed timing wheel.
+ */
+public class ReactorLoop implements Runnable {
+
+    //the resolution of the connection timers, and how many ticks one lap of the wheel has
+    static final String TIMER_TICK_MILLIS_PROPERTY = "reactor.timer.tick.millis";
+    static final String TIMER_WHEEL_SIZE_PROPERTY = "reactor.timer.wheel.size";
+
+    private final Selector selector;
+    private final ActorThreadPool pool;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private volatile Thread selectorThread;
+    private final TimingWheel timers;
+    private long now = System.nanoTime(); //when the loop last woke up, only read on the selector thread
+
+    public ReactorLoop(ActorThreadPool pool) throws IOException {
+        this.selector = Selector.open();
+        this.pool = pool;
+        long tickNanos = Long.getLong(TIMER_TICK_MILLIS_PROPERTY, 50) * 1_000_000;
+        int wheelSize = Integer.highestOneBit(Math.max(1, Integer.getInteger(TIMER_WHEEL_SIZE_PROPERTY, 512) * 2 - 1));
+        this.timers = new TimingWheel(tickNanos, wheelSize, now);
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                //without timers it waits for I/O only
+                selector.select(timers.millisToNextTick(System.nanoTime()));
+                now = System.nanoTime();
+                runSelectionThreadTasks();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isValid()) {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+                timers.advance(now);
+
+            }
+        } catch (ClosedSelectorException ex) {
+            //do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            //this is an error
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * hands a new connection to this loop.
+     * frames queued before the registration ran had their interest change dropped, so they are picked up here.
+     */
+    /*package*/ void register(SocketChannel chan, NonBlockingConnectionHandler<?> handler) {
+        execute(() -> {
+            try {
+                int ops = handler.getQueuedBytes() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+                chan.register(selector, ops, handler);
+            } catch (ClosedChannelException ex) {
+                //the client is already gone
+            }
+        });
+    }
+
+    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
+        if (Thread.currentThread() == selectorThread) {
+            setInterestedOps(chan, ops);
+        } else {
+            execute(() -> setInterestedOps(chan, ops));
+        }
+    }
+
+    private void setInterestedOps(SocketChannel chan, int ops) {
+        final SelectionKey key = chan.keyFor(selector);
+        //the connection may have been closed since the change was asked for
+        if (key != null && key.isValid()) {
+            key.interestOps(ops);
+        }
+    }
+
+    //runs the task on the selector thread
+    /*package*/ void execute(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * when the loop last woke up. only for the selector thread, which is the only one that schedules timers
+     */
+    /*package*/ long now() {
+        return now;
+    }
+
+    //runs the task on the selector thread at the deadline (System.nanoTime), the timer moves if it was scheduled already
+    /*package*/ void schedule(TimingWheel.Timer timer, long deadlineNanos) {
+        timers.schedule(timer, deadlineNanos);
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        NonBlockingConnectionHandler<?> handler = (NonBlockingConnectionHandler<?>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                pool.submit(handler.mailbox(), task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        while (!selectorTasks.isEmpty()) {
+            selectorTasks.remove().run();
+        }
+    }
+
+    public void close() throws IOException {
+        selector.close();
+    }
+}
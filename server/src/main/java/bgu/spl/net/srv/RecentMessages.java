@@ -0,0 +1,202 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The last messages published on one channel (their encoded shared part), for subscribers that join late.
+ * A fixed ring of slots, bounded by a count and a byte budget. Publishers never wait for each other: a publisher claims
+ * a sequence number, fills the slot it maps to and later records which Subscribers snapshot it delivered the message to,
+ * so a new subscriber can tell which recent messages it already got live. Nothing is allocated per message.
+ */
+public final class RecentMessages {
+
+    public static final String SIZE_PROPERTY = "stomp.history.size";
+    public static final String BYTES_PROPERTY = "stomp.history.bytes";
+
+    private static final long EMPTY = -1;
+    private static final long BUSY = -2; //a thread is changing the slot
+    private static final long UNKNOWN = -1; //the publisher did not take its subscribers snapshot yet
+    private static final int SPINS = 100; //how long a reader spins on a publisher in the middle of a slot before it parks
+
+    private final int capacity;
+    private final long byteBudget;
+    private final AtomicLong claimed = new AtomicLong(0);
+    private final AtomicLong oldestKept = new AtomicLong(0); //older messages were dropped for the byte budget
+    private final AtomicLong bytes = new AtomicLong(0);
+    private final AtomicLongArray sequences; //per slot: EMPTY, BUSY or the sequence of the message in it
+    private final AtomicReferenceArray<ByteBuffer> parts;
+    private final AtomicLongArray versions; //per slot: the version of the snapshot the message was delivered to
+
+    /**
+     * @param capacity how many messages are kept
+     * @param byteBudget how many bytes the kept messages may take together, the oldest are dropped first
+     */
+    public RecentMessages(int capacity, long byteBudget) {
+        this.capacity = capacity;
+        this.byteBudget = byteBudget;
+        this.sequences = new AtomicLongArray(capacity);
+        this.parts = new AtomicReferenceArray<>(capacity);
+        this.versions = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, EMPTY);
+        }
+    }
+
+    /**
+     * the history of a channel as configured by the stomp.history.size / stomp.history.bytes system properties,
+     * which can be set for one channel by adding .&lt;channel&gt; (stomp.history.size.police=100). a size of 0 keeps nothing
+     */
+    public static RecentMessages forChannel(String channel) {
+        int size = Integer.getInteger(SIZE_PROPERTY + "." + channel, Integer.getInteger(SIZE_PROPERTY, 32));
+        long bytes = Long.getLong(BYTES_PROPERTY + "." + channel, Long.getLong(BYTES_PROPERTY, 256 << 10));
+        return new RecentMessages(Math.max(0, size), bytes);
+    }
+
+    /**
+     * keeps a published message. call it before taking the subscribers snapshot for the message
+     * @return the sequence of the message, to pass to delivered()
+     */
+    public long add(ByteBuffer sharedPart) {
+        if (capacity == 0) {
+            return -1;
+        }
+        long sequence = claimed.getAndIncrement();
+        int slot = slotOf(sequence);
+        long previous = lockSlot(slot);
+        if (previous > sequence) {
+            sequences.set(slot, previous); //a publisher a whole ring ahead of us already took the slot
+            return sequence;
+        }
+        ByteBuffer old = parts.getAndSet(slot, sharedPart);
+        versions.set(slot, UNKNOWN);
+        sequences.set(slot, sequence);
+        long added = sharedPart.remaining() - (previous >= 0 && old != null ? old.remaining() : 0);
+        if (bytes.addAndGet(added) > byteBudget) {
+            dropOldest(sequence);
+        }
+        return sequence;
+    }
+
+    /**
+     * records the version of the Subscribers snapshot the message was sent to live
+     */
+    public void delivered(long sequence, long subscribersVersion) {
+        if (sequence < 0) {
+            return; //not kept
+        }
+        int slot = slotOf(sequence);
+        long current = lockSlot(slot);
+        if (current == sequence) {
+            versions.set(slot, subscribersVersion);
+        }
+        sequences.set(slot, current);
+    }
+
+    /**
+     * the recent messages a subscriber that joined with the given snapshot version did not get live, oldest first.
+     * call it after the subscriber is in the channel's snapshot
+     * @param max how many of the last messages to look at
+     */
+    public List<ByteBuffer> missedBy(long joinedVersion, int max) {
+        return missedBetween(Long.MIN_VALUE, joinedVersion, max);
+    }
+
+    /**
+     * like missedBy, for a subscriber that was in the channel before leftVersion: only the messages delivered
+     * to a snapshot from leftVersion (the one it left) up to the one it joined again, the ones it was away for
+     */
+    public List<ByteBuffer> missedBetween(long leftVersion, long joinedVersion, int max) {
+        if (capacity == 0) {
+            return Collections.emptyList();
+        }
+        //every message claimed from here on takes its snapshot after the subscriber joined, so it is delivered live
+        long end = claimed.get();
+        long start = Math.max(Math.max(0, end - Math.min(Math.max(0, max), capacity)), oldestKept.get());
+        List<ByteBuffer> missed = new ArrayList<>();
+        long total = 0;
+        //newest first, so the byte budget keeps the newest messages
+        for (long sequence = end - 1; sequence >= start; sequence--) {
+            ByteBuffer part = missedPart(sequence, leftVersion, joinedVersion);
+            if (part == null) {
+                continue;
+            }
+            total += part.remaining();
+            if (total > byteBudget) {
+                break;
+            }
+            missed.add(part.duplicate());
+        }
+        Collections.reverse(missed);
+        return missed;
+    }
+
+    //the message if it was delivered to a snapshot from leftVersion up to the subscriber's, null if it went live or is gone.
+    //waits for a publisher that claimed the sequence but did not record its snapshot yet, however long it takes:
+    //giving up could mean the message is neither in the history nor live. the publisher always gets there, nothing
+    //between add() and delivered() blocks or fails
+    private ByteBuffer missedPart(long sequence, long leftVersion, long joinedVersion) {
+        int slot = slotOf(sequence);
+        int spins = 0;
+        while (true) {
+            long before = sequences.get(slot);
+            if (before == sequence) {
+                ByteBuffer part = parts.get(slot);
+                long version = versions.get(slot);
+                if (sequences.get(slot) == sequence && version != UNKNOWN) {
+                    return version >= leftVersion && version < joinedVersion ? part : null;
+                }
+            } else if (before > sequence || sequence < oldestKept.get()) {
+                return null; //overwritten by a newer message or dropped for the budget
+            }
+            //claimed but not written yet, or written without its snapshot version yet. the publisher is a few instructions
+            //away, unless it was descheduled
+            if (++spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(10_000);
+            }
+        }
+    }
+
+    private void dropOldest(long newest) {
+        while (bytes.get() > byteBudget) {
+            long oldest = oldestKept.get();
+            //the slots of sequences a whole ring behind were reused already, start after them
+            long dropped = Math.max(oldest, newest - capacity + 1);
+            if (dropped >= newest) {
+                return; //never drop the message just added
+            }
+            if (!oldestKept.compareAndSet(oldest, dropped + 1)) {
+                continue;
+            }
+            int slot = slotOf(dropped);
+            long current = lockSlot(slot);
+            if (current == dropped) {
+                bytes.addAndGet(-parts.getAndSet(slot, null).remaining());
+                current = EMPTY;
+            }
+            sequences.set(slot, current);
+        }
+    }
+
+    private long lockSlot(int slot) {
+        while (true) {
+            long current = sequences.get(slot);
+            if (current != BUSY && sequences.compareAndSet(slot, current, BUSY)) {
+                return current;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private int slotOf(long sequence) {
+        return (int) (sequence % capacity);
+    }
+}
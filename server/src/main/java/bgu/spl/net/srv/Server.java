@@ -34,6 +34,29 @@ public interface Server<T> extends Closeable {
 
     }
 
+    /**
+     *This function returns a new instance of a thread per client server that runs every client on a virtual thread.
+     *the handlers are the same blocking handlers as in threadPerClient, but a blocked client does not hold a platform thread.
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new virtual thread per client server
+     */
+    public static <T> Server<T>  virtualThreadPerClient(
+            int port,
+            Supplier<MessagingProtocol<T> > protocolFactory,
+            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
+
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T>  handler) {
+                Thread.ofVirtual().name("stomp-client").start(handler);
+            }
+        };
+
+    }
+
     /**
      * This function returns a new instance of a reactor pattern server
      * @param nthreads Number of threads available for protocol processing
@@ -51,4 +74,46 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
     }
 
+    /**
+     * This function returns a new instance of a reactor pattern server with several I/O loops.
+     * One thread accepts the clients and spreads them over the loops, each loop has its own selector and thread.
+     * @param nthreads Number of threads available for protocol processing
+     * @param nloops Number of I/O loops (selector threads)
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int nloops,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new Reactor<T>(nthreads, nloops, port, protocolFactory, encoderDecoderFactory);
+    }
+
+    /**
+     * This function returns a new instance of a reactor pattern server with several I/O loops
+     * and a policy for the clients that do not read their frames fast enough.
+     * @param nthreads Number of threads available for protocol processing
+     * @param nloops Number of I/O loops (selector threads)
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param outboundPolicy What a connection does with published frames once its outbound budget is used
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int nloops,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            OutboundPolicy outboundPolicy) {
+        return new Reactor<T>(nthreads, nloops, port, protocolFactory, encoderDecoderFactory, outboundPolicy);
+    }
+
 }
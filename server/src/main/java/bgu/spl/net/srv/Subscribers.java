@@ -0,0 +1,201 @@
+package bgu.spl.net.srv;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the subscribers of one channel: the connection ids and, at the same index,
+ * the subscription id each connection chose, how it acknowledges its messages and its selector. Subscribing or unsubscribing builds a new snapshot,
+ * so a fan-out walks two plain int arrays without locks, copies or boxing.
+ * Subscribers with the same selector share a group, so a fan-out evaluates each distinct selector once per message.
+ */
+public final class Subscribers {
+
+    public static final Subscribers EMPTY = new Subscribers(new int[0], new int[0], new AckMode[0], new String[0], 0);
+    private static final String[] NO_SELECTORS = new String[0];
+
+    private final int[] connectionIds;
+    private final int[] subscriptionIds;
+    private final AckMode[] ackModes;
+    private final String[] selectors; //null for a subscriber that gets every message
+    private final long version;
+    private volatile Groups groups; //computed by the first fan-out that needs it
+
+    private Subscribers(int[] connectionIds, int[] subscriptionIds, AckMode[] ackModes, String[] selectors, long version) {
+        this.connectionIds = connectionIds;
+        this.subscriptionIds = subscriptionIds;
+        this.ackModes = ackModes;
+        this.selectors = selectors;
+        this.version = version;
+    }
+
+    /**
+     * @return how many changes led to this snapshot of the channel, a later snapshot always has a higher version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return connectionIds.length;
+    }
+
+    public int connectionId(int index) {
+        return connectionIds[index];
+    }
+
+    public int subscriptionId(int index) {
+        return subscriptionIds[index];
+    }
+
+    public AckMode ackMode(int index) {
+        return ackModes[index];
+    }
+
+    /**
+     * @return the selector of the subscriber, null if it gets every message
+     */
+    public String selector(int index) {
+        return selectors[index];
+    }
+
+    /**
+     * @return the distinct selectors of the snapshot, selectorGroup tells which one a subscriber has
+     */
+    public String[] distinctSelectors() {
+        return groups().distinct;
+    }
+
+    /**
+     * @return the index of the subscriber's selector in distinctSelectors, -1 if it gets every message
+     */
+    public int selectorGroup(int index) {
+        return groups().group[index];
+    }
+
+    private Groups groups() {
+        Groups computed = groups;
+        if (computed == null) {
+            //a race computes the same groups twice, which is harmless
+            computed = new Groups(selectors);
+            groups = computed;
+        }
+        return computed;
+    }
+
+    /**
+     * @return the index of the connection in this snapshot, -1 if it is not subscribed
+     */
+    public int indexOf(int connectionId) {
+        for (int i = 0; i < connectionIds.length; i++) {
+            if (connectionIds[i] == connectionId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return a snapshot that also has the connection, with this subscription id and ack mode if it was already there
+     */
+    public Subscribers with(int connectionId, int subscriptionId, AckMode ackMode) {
+        return with(connectionId, subscriptionId, ackMode, null);
+    }
+
+    /**
+     * @param selector the canonical text of the subscriber's selector, null if it gets every message
+     */
+    public Subscribers with(int connectionId, int subscriptionId, AckMode ackMode, String selector) {
+        int index = indexOf(connectionId);
+        if (index >= 0) {
+            int[] newSubscriptionIds = subscriptionIds.clone();
+            AckMode[] newAckModes = ackModes.clone();
+            String[] newSelectors = selectors.clone();
+            newSubscriptionIds[index] = subscriptionId;
+            newAckModes[index] = ackMode;
+            newSelectors[index] = selector;
+            return new Subscribers(connectionIds, newSubscriptionIds, newAckModes, newSelectors, version + 1);
+        }
+        int[] newConnectionIds = Arrays.copyOf(connectionIds, connectionIds.length + 1);
+        int[] newSubscriptionIds = Arrays.copyOf(subscriptionIds, subscriptionIds.length + 1);
+        AckMode[] newAckModes = Arrays.copyOf(ackModes, ackModes.length + 1);
+        String[] newSelectors = Arrays.copyOf(selectors, selectors.length + 1);
+        newConnectionIds[connectionIds.length] = connectionId;
+        newSubscriptionIds[subscriptionIds.length] = subscriptionId;
+        newAckModes[ackModes.length] = ackMode;
+        newSelectors[selectors.length] = selector;
+        return new Subscribers(newConnectionIds, newSubscriptionIds, newAckModes, newSelectors, version + 1);
+    }
+
+    /**
+     * @return the subscribers of both snapshots, with the version of this one. a connection in both is there twice,
+     *         once per subscription
+     */
+    public Subscribers plus(Subscribers other) {
+        if (other.size() == 0) {
+            return this;
+        }
+        int size = connectionIds.length;
+        int[] newConnectionIds = Arrays.copyOf(connectionIds, size + other.size());
+        int[] newSubscriptionIds = Arrays.copyOf(subscriptionIds, size + other.size());
+        AckMode[] newAckModes = Arrays.copyOf(ackModes, size + other.size());
+        System.arraycopy(other.connectionIds, 0, newConnectionIds, size, other.size());
+        System.arraycopy(other.subscriptionIds, 0, newSubscriptionIds, size, other.size());
+        System.arraycopy(other.ackModes, 0, newAckModes, size, other.size());
+        String[] newSelectors = Arrays.copyOf(selectors, size + other.size());
+        System.arraycopy(other.selectors, 0, newSelectors, size, other.size());
+        return new Subscribers(newConnectionIds, newSubscriptionIds, newAckModes, newSelectors, version);
+    }
+
+    /**
+     * @return a snapshot without the connection, this one if it was not subscribed
+     */
+    public Subscribers without(int connectionId) {
+        int index = indexOf(connectionId);
+        if (index < 0) {
+            return this;
+        }
+        //move the last subscriber into the hole, the order of the subscribers does not matter
+        int last = connectionIds.length - 1;
+        int[] newConnectionIds = Arrays.copyOf(connectionIds, last);
+        int[] newSubscriptionIds = Arrays.copyOf(subscriptionIds, last);
+        AckMode[] newAckModes = Arrays.copyOf(ackModes, last);
+        String[] newSelectors = Arrays.copyOf(selectors, last);
+        if (index < last) {
+            newConnectionIds[index] = connectionIds[last];
+            newSubscriptionIds[index] = subscriptionIds[last];
+            newAckModes[index] = ackModes[last];
+            newSelectors[index] = selectors[last];
+        }
+        return new Subscribers(newConnectionIds, newSubscriptionIds, newAckModes, newSelectors, version + 1);
+    }
+
+    //the subscribers grouped by selector: the distinct selectors, and each subscriber's index among them
+    private static final class Groups {
+        final String[] distinct;
+        final int[] group;
+
+        Groups(String[] selectors) {
+            group = new int[selectors.length];
+            Map<String, Integer> indexes = null;
+            for (int i = 0; i < selectors.length; i++) {
+                if (selectors[i] == null) {
+                    group[i] = -1;
+                    continue;
+                }
+                if (indexes == null) {
+                    indexes = new HashMap<>();
+                }
+                Integer index = indexes.putIfAbsent(selectors[i], indexes.size());
+                group[i] = index == null ? indexes.size() - 1 : index;
+            }
+            distinct = indexes == null ? NO_SELECTORS : new String[indexes.size()];
+            if (indexes != null) {
+                for (Map.Entry<String, Integer> entry : indexes.entrySet()) {
+                    distinct[entry.getValue()] = entry.getKey();
+                }
+            }
+        }
+    }
+}
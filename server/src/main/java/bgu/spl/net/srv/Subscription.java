@@ -0,0 +1,35 @@
+package bgu.spl.net.srv;
+
+/**
+ * One subscription of a user: the destination, the id the client gave it and how its messages are sent. Immutable.
+ */
+public final class Subscription {
+
+    private final String destination;
+    private final int id;
+    private final AckMode ackMode;
+    private final String selector; //the canonical text, null for every message
+
+    public Subscription(String destination, int id, AckMode ackMode, String selector) {
+        this.destination = destination;
+        this.id = id;
+        this.ackMode = ackMode;
+        this.selector = selector;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public AckMode getAckMode() {
+        return ackMode;
+    }
+
+    public String getSelector() {
+        return selector;
+    }
+}
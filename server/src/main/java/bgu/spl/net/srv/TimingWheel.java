@@ -0,0 +1,132 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel: a ring of buckets, one per tick, each a linked list of the timers due on the ticks that map to it.
+ * Scheduling and cancelling a timer are O(1) and a tick only looks at its own bucket, so the upkeep does not grow
+ * with the number of connections. A timer fires on the first tick at or after its deadline.
+ * Not thread safe: the reactor loop that owns it is its only user.
+ */
+final class TimingWheel {
+
+    private final long tickNanos;
+    private final Timer[] buckets; //the first timer of each bucket, doubly linked
+    private final int mask;
+    private final long startNanos;
+    private long currentTick = 0; //the first tick not processed yet
+    private int size = 0;
+    private final List<Timer> expired = new ArrayList<>(); //reused by every advance
+
+    /**
+     * @param wheelSize the number of buckets, a power of two
+     */
+    TimingWheel(long tickNanos, int wheelSize, long nowNanos) {
+        this.tickNanos = tickNanos;
+        this.buckets = new Timer[wheelSize];
+        this.mask = wheelSize - 1;
+        this.startNanos = nowNanos;
+    }
+
+    /**
+     * schedules the timer, moving it if it was already scheduled
+     */
+    void schedule(Timer timer, long deadlineNanos) {
+        cancel(timer);
+        //rounded up, a timer never fires early. a deadline that passed already fires on the next tick
+        long tick = Math.max(currentTick, Math.ceilDiv(deadlineNanos - startNanos, tickNanos));
+        int bucket = (int) (tick & mask);
+        timer.tick = tick;
+        timer.bucket = bucket;
+        timer.prev = null;
+        timer.next = buckets[bucket];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        buckets[bucket] = timer;
+        size++;
+    }
+
+    void cancel(Timer timer) {
+        if (timer.bucket < 0) {
+            return;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            buckets[timer.bucket] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.bucket = -1;
+        size--;
+    }
+
+    /**
+     * runs the timers of every tick up to now
+     */
+    void advance(long nowNanos) {
+        long nowTick = (nowNanos - startNanos) / tickNanos;
+        if (nowTick < currentTick) {
+            return;
+        }
+        //after a long pause one lap over the buckets finds everything that is due
+        long lastTick = size == 0 ? currentTick - 1 : Math.min(nowTick, currentTick + mask);
+        for (long tick = currentTick; tick <= lastTick; tick++) {
+            for (Timer timer = buckets[(int) (tick & mask)]; timer != null; timer = timer.next) {
+                if (timer.tick <= nowTick) {
+                    expired.add(timer); //a later lap stays in the bucket
+                }
+            }
+        }
+        currentTick = nowTick + 1;
+        //taken out before any of them runs, a task may schedule or cancel timers
+        for (Timer timer : expired) {
+            cancel(timer);
+        }
+        for (int i = 0; i < expired.size(); i++) {
+            Timer timer = expired.get(i);
+            expired.set(i, null);
+            try {
+                timer.task.run();
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();//the other timers still run
+            }
+        }
+        expired.clear();
+    }
+
+    /**
+     * @return how long the loop may wait for I/O before the next tick, 0 if no timer is scheduled
+     */
+    long millisToNextTick(long nowNanos) {
+        if (size == 0) {
+            return 0;
+        }
+        long nanos = startNanos + currentTick * tickNanos - nowNanos;
+        return Math.max(1, Math.ceilDiv(nanos, 1_000_000));
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * a task that can be scheduled on the wheel, again and again. it is scheduled at most once at a time
+     */
+    static final class Timer {
+        private final Runnable task;
+        private long tick;
+        private int bucket = -1; //-1 while not scheduled
+        private Timer prev;
+        private Timer next;
+
+        Timer(Runnable task) {
+            this.task = task;
+        }
+    }
+}
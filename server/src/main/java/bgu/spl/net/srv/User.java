@@ -1,6 +1,7 @@
 package bgu.spl.net.srv;
 
-import java.util.Map;
+import java.util.Collection;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class User<T>{
@@ -9,7 +10,11 @@ public class User<T>{
     private final String password;
     private boolean isLoggedIn;
     private ConnectionHandler<T> connectionHandler;
+    //the subscriptions of the current login in both directions, so unsubscribe and log out never scan.
+    //only the connection's own protocol changes them, both maps are updated together
     private ConcurrentHashMap<String, Integer> subscribedchannels = new ConcurrentHashMap<>();//channel, subscriptionId. this map is store the uniqe subscribe id for each user
+    private ConcurrentHashMap<Integer, Subscription> subscriptionsById = new ConcurrentHashMap<>();//subscriptionId, subscription
+    private Set<Integer> restoredIds = ConcurrentHashMap.newKeySet();//the subscriptions restored at login, not made by this client
 
     public User(int connectionId,String username, String password, ConnectionHandler<T> connectionHandler) {
         this.username = username;
@@ -43,6 +48,8 @@ public class User<T>{
         connectionId = -999;
         connectionHandler = null;
         subscribedchannels = new ConcurrentHashMap<>();
+        subscriptionsById = new ConcurrentHashMap<>();
+        restoredIds = ConcurrentHashMap.newKeySet();
     }
     public boolean isSubscribed(String channel){
         return subscribedchannels.containsKey(channel);
@@ -52,20 +59,52 @@ public class User<T>{
         return subscribedchannels.get(channel);
     }
 
-    public void subscribe(String channel, int subscriptionId) {
-        subscribedchannels.put(channel, subscriptionId);
+    public boolean isSubscriptionIdUsed(int subscriptionId) {
+        return subscriptionsById.containsKey(subscriptionId);
     }
 
+    public void subscribe(Subscription subscription) {
+        subscribedchannels.put(subscription.getDestination(), subscription.getId());
+        subscriptionsById.put(subscription.getId(), subscription);
+    }
+
+    /**
+     * subscribes again to a subscription of an earlier login, one the client did not make on this one
+     */
+    public void restore(Subscription subscription) {
+        subscribe(subscription);
+        restoredIds.add(subscription.getId());
+    }
+
+    public boolean isRestored(int subscriptionId) {
+        return restoredIds.contains(subscriptionId);
+    }
+
+    /**
+     * @return the channel of the subscription, null if there is no subscription with this id
+     */
     public String unsubscribe(int subscribeId) {
-        for (Map.Entry<String, Integer> entry : subscribedchannels.entrySet()) {
-            if (entry.getValue() == subscribeId) {
-                subscribedchannels.remove(entry.getKey());
-                //return the channel name
-                return entry.getKey();
-            }
+        Subscription subscription = subscriptionsById.remove(subscribeId);
+        if (subscription == null) {
+            return null;
         }
-        return null;
+        restoredIds.remove(subscribeId);
+        subscribedchannels.remove(subscription.getDestination());
+        return subscription.getDestination();
+    }
+
+    /**
+     * @return the channels this login is subscribed to, a live view
+     */
+    public Set<String> getSubscribedChannels() {
+        return subscribedchannels.keySet();
+    }
 
+    /**
+     * @return the subscriptions of this login, a live view
+     */
+    public Collection<Subscription> getSubscriptions() {
+        return subscriptionsById.values();
     }
 
     public int getConnectionId() {
@@ -0,0 +1,215 @@
+package bgu.spl.net.srv.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * The append-only log of one channel: its segments, oldest first, in a directory of their own.
+ * Appends are made while holding lock(), so the log order is the order the messages got their ids.
+ * Cursors read it without the lock, any number of them at once.
+ */
+public final class ChannelLog {
+
+    private final Path dir;
+    private final EventLog config;
+    //a lock and not synchronized, the publishers of a channel may be virtual threads
+    private final ReentrantLock lock = new ReentrantLock();
+    //replaced (never changed) under the lock, so readers can walk the list they got
+    private volatile List<Segment> segments;
+
+    private ChannelLog(Path dir, EventLog config, List<Segment> segments) {
+        this.dir = dir;
+        this.config = config;
+        this.segments = segments;
+    }
+
+    static ChannelLog open(Path dir, EventLog config) throws IOException {
+        Files.createDirectories(dir);
+        List<Segment> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            //the names are zero padded message ids, so sorting by name sorts by id
+            for (Path file : (Iterable<Path>) files.filter(f -> f.getFileName().toString().endsWith(Segment.SUFFIX)).sorted()::iterator) {
+                segments.add(Segment.open(file));
+            }
+        }
+        return new ChannelLog(dir, config, List.copyOf(segments));
+    }
+
+    public void lock() {
+        lock.lock();
+    }
+
+    public void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * stores a message at the end of the log, rolling to a new segment when the current one is full.
+     * the caller holds lock() and gives ids in increasing order. once the event log is closed nothing is stored
+     */
+    public void append(long messageId, long timestamp, ByteBuffer payload) throws IOException {
+        if (config.isClosed()) {
+            return; //shutting down, the message still goes out live
+        }
+        List<Segment> current = segments;
+        Segment last = current.isEmpty() ? null : current.get(current.size() - 1);
+        if (last == null || !last.fits(payload.remaining())) {
+            last = roll(current, messageId, payload.remaining());
+        }
+        last.append(messageId, timestamp, payload);
+        config.recordAppend(payload.remaining());
+        if (config.isSyncEveryAppend()) {
+            last.flush();
+        }
+    }
+
+    private Segment roll(List<Segment> current, long messageId, int payloadLength) throws IOException {
+        //a message bigger than a segment gets a segment of its own size
+        int capacity = (int) Math.max(config.getSegmentBytes(), Segment.RECORD_HEADER + (long) payloadLength);
+        Segment next = Segment.create(dir, messageId, capacity);
+        List<Segment> rolled = new ArrayList<>(current);
+        rolled.add(next);
+        segments = applyRetention(rolled);
+        return next;
+    }
+
+    /**
+     * drops the segments that got too old while nothing was appended, a quiet channel does not roll.
+     * only takes the lock when the oldest segment is due
+     */
+    void expire() {
+        List<Segment> current = segments;
+        if (current.size() < 2 || current.get(0).getLastTimestamp() >= System.currentTimeMillis() - config.getRetentionMillis()) {
+            return;
+        }
+        lock.lock();
+        try {
+            segments = applyRetention(segments);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //drops the oldest segments over the size or age limit. the segment being written is always kept
+    private List<Segment> applyRetention(List<Segment> all) {
+        long totalBytes = 0;
+        for (Segment segment : all) {
+            totalBytes += segment.capacity();
+        }
+        long oldestKept = System.currentTimeMillis() - config.getRetentionMillis();
+        int drop = 0;
+        while (drop < all.size() - 1) {
+            Segment oldest = all.get(drop);
+            if (totalBytes <= config.getRetentionBytes() && oldest.getLastTimestamp() >= oldestKept) {
+                break;
+            }
+            totalBytes -= oldest.capacity();
+            try {
+                oldest.delete(); //cursors already on it keep reading the mapping
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            drop++;
+        }
+        return List.copyOf(all.subList(drop, all.size()));
+    }
+
+    /**
+     * @return the id of the last message in the log, -1 if it is empty
+     */
+    public long lastMessageId() {
+        List<Segment> current = segments;
+        return current.isEmpty() ? -1 : current.get(current.size() - 1).getLastMessageId();
+    }
+
+    /**
+     * a reader over the messages with an id of at least fromMessageId that were stored at sinceMillis or later
+     */
+    public Cursor cursor(long fromMessageId, long sinceMillis) {
+        return new Cursor(fromMessageId, sinceMillis);
+    }
+
+    //the segment after the given one, null if it is the last
+    private Segment segmentAfter(Segment segment) {
+        for (Segment candidate : segments) {
+            if (segment == null || candidate.getBaseMessageId() > segment.getBaseMessageId()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    void flush() {
+        for (Segment segment : segments) {
+            if (segment.flush()) {
+                config.recordFlush();
+            }
+        }
+    }
+
+    public final class Cursor {
+        private final long fromMessageId;
+        private final long sinceMillis;
+        private Segment segment;
+        private int position = 0;
+
+        private Cursor(long fromMessageId, long sinceMillis) {
+            this.fromMessageId = fromMessageId;
+            this.sinceMillis = sinceMillis;
+            //start at the last segment that begins at or before the id, then skip the segments that ended before the time
+            List<Segment> current = segments;
+            int start = 0;
+            while (start + 1 < current.size() && current.get(start + 1).getBaseMessageId() <= fromMessageId) {
+                start++;
+            }
+            while (start + 1 < current.size() && current.get(start).getLastTimestamp() < sinceMillis) {
+                start++;
+            }
+            segment = current.isEmpty() ? null : current.get(start);
+        }
+
+        /**
+         * hands the payload of every matching message stored so far after the cursor to the sink, oldest first.
+         * the cursor remembers where it stopped, so calling it again gives only what was appended since.
+         * @param sink returns false to stop, the message it refused is given again next time
+         * @return true if the cursor reached the end of the log, false if the sink stopped it
+         */
+        public boolean read(Predicate<ByteBuffer> sink) {
+            if (segment == null) {
+                segment = segmentAfter(null);
+                if (segment == null) {
+                    return true; //nothing was ever written
+                }
+            }
+            while (true) {
+                int end = segment.end();
+                while (position < end) {
+                    if (segment.messageIdAt(position) >= fromMessageId && segment.timestampAt(position) >= sinceMillis) {
+                        if (!sink.test(segment.copyPayloadAt(position))) {
+                            return false;
+                        }
+                        config.recordReplay();
+                    }
+                    position += Segment.RECORD_HEADER + segment.payloadLengthAt(position);
+                }
+                Segment next = segmentAfter(segment);
+                if (next == null) {
+                    return true;
+                }
+                //a segment is not written after the next one exists, but the last records may have come in after we read end
+                if (position < segment.end()) {
+                    continue;
+                }
+                segment = next;
+                position = 0;
+            }
+        }
+    }
+}
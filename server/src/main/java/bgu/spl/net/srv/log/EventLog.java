@@ -0,0 +1,211 @@
+package bgu.spl.net.srv.log;
+
+import bgu.spl.net.srv.metrics.LatencyHistogram;
+import bgu.spl.net.srv.metrics.ServerMetrics;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * The durable log of every channel, one directory per channel under the log directory.
+ * Appends only write to the mapped pages. A background thread makes the pages written since its last run durable
+ * every flush interval (group commit: one fsync covers all the messages of the interval), so a crash of the process
+ * loses nothing and a power failure loses at most the last interval. A flush interval of 0 fsyncs every append instead.
+ * The same thread drops the segments past the age limit, also of channels that stopped getting messages.
+ *
+ * Turned on with -Dstomp.log.dir=&lt;dir&gt;, the other stomp.log.* properties tune it.
+ */
+public final class EventLog implements Closeable {
+
+    public static final String DIR_PROPERTY = "stomp.log.dir";
+    public static final String SEGMENT_BYTES_PROPERTY = "stomp.log.segment.bytes";
+    public static final String RETENTION_BYTES_PROPERTY = "stomp.log.retention.bytes";
+    public static final String RETENTION_HOURS_PROPERTY = "stomp.log.retention.hours";
+    public static final String FLUSH_MILLIS_PROPERTY = "stomp.log.flush.millis";
+
+    private static final String CHANNEL_DIR_PREFIX = "ch-";
+
+    private static final LongAdder APPENDED_RECORDS = ServerMetrics.get().counter("log.appended.records");
+    private static final LongAdder APPENDED_BYTES = ServerMetrics.get().counter("log.appended.bytes");
+    private static final LongAdder REPLAYED_RECORDS = ServerMetrics.get().counter("log.replayed.records");
+    private static final LongAdder FLUSHES = ServerMetrics.get().counter("log.flushes");
+    private static final LatencyHistogram FLUSH_NANOS = ServerMetrics.get().histogram("log.flush.nanos");
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final long flushMillis;
+    private final Map<String, ChannelLog> channels = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private volatile boolean closed = false; //set by close(), appends stop before the last flush
+
+    /**
+     * opens the log in dir, loading the channels already in it
+     * @param segmentBytes the size of a segment file
+     * @param retentionBytes how many bytes of segments a channel keeps, the oldest segments are deleted first
+     * @param retentionMillis segments whose last message is older than this are deleted
+     * @param flushMillis how often the written pages are forced to the disk, 0 to force on every append
+     */
+    public EventLog(Path dir, int segmentBytes, long retentionBytes, long retentionMillis, long flushMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.flushMillis = flushMillis;
+
+        Files.createDirectories(dir);
+        try (Stream<Path> channelDirs = Files.list(dir)) {
+            for (Path channelDir : (Iterable<Path>) channelDirs.filter(Files::isDirectory)::iterator) {
+                String name = channelDir.getFileName().toString();
+                if (name.startsWith(CHANNEL_DIR_PREFIX)) {
+                    String channel = URLDecoder.decode(name.substring(CHANNEL_DIR_PREFIX.length()), StandardCharsets.UTF_8);
+                    channels.put(channel, ChannelLog.open(channelDir, this));
+                }
+            }
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "event-log-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        //with a flush on every append the thread only expires segments, once a second
+        long intervalMillis = flushMillis > 0 ? flushMillis : 1000;
+        flusher.scheduleWithFixedDelay(this::flushAndExpire, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the log configured by the stomp.log.* system properties, null if stomp.log.dir is not set
+     */
+    public static EventLog fromSystemProperties() {
+        String dir = System.getProperty(DIR_PROPERTY);
+        if (dir == null) {
+            return null;
+        }
+        try {
+            EventLog log = new EventLog(Paths.get(dir),
+                    Integer.getInteger(SEGMENT_BYTES_PROPERTY, 16 << 20),
+                    Long.getLong(RETENTION_BYTES_PROPERTY, 1L << 30),
+                    TimeUnit.HOURS.toMillis(Long.getLong(RETENTION_HOURS_PROPERTY, 7 * 24)),
+                    Long.getLong(FLUSH_MILLIS_PROPERTY, 10));
+            Runtime.getRuntime().addShutdownHook(new Thread(log::close, "event-log-close"));
+            return log;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("could not open the event log in " + dir, ex);
+        }
+    }
+
+    /**
+     * @return the log of the channel, created empty the first time the channel is used
+     */
+    public ChannelLog channel(String channel) {
+        return channels.computeIfAbsent(channel, name -> {
+            try {
+                //encoded so any channel name is one safe directory name, the prefix keeps "." and ".." away
+                return ChannelLog.open(dir.resolve(CHANNEL_DIR_PREFIX + URLEncoder.encode(name, StandardCharsets.UTF_8)), this);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    /**
+     * @return the highest message id in any channel, -1 if the log is empty. ids given after a restart continue after it
+     */
+    public long lastMessageId() {
+        long last = -1;
+        for (ChannelLog channel : channels.values()) {
+            last = Math.max(last, channel.lastMessageId());
+        }
+        return last;
+    }
+
+    private void flushAndExpire() {
+        try {
+            flush();
+            for (ChannelLog channel : channels.values()) {
+                channel.expire();
+            }
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();//the flusher must keep running, an exception would cancel it
+        }
+    }
+
+    private void flush() {
+        long started = System.nanoTime();
+        for (ChannelLog channel : channels.values()) {
+            channel.flush();
+        }
+        FLUSH_NANOS.record(System.nanoTime() - started);
+    }
+
+    /**
+     * stops storing messages and forces what was stored to the disk. an append running meanwhile finishes first,
+     * each channel is flushed under its lock
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flusher.shutdownNow();
+        try {
+            flusher.awaitTermination(1, TimeUnit.SECONDS); //a flush in progress ends before ours starts
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (ChannelLog channel : channels.values()) {
+            channel.lock();
+            try {
+                channel.flush();
+            } finally {
+                channel.unlock();
+            }
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    long getRetentionBytes() {
+        return retentionBytes;
+    }
+
+    long getRetentionMillis() {
+        return retentionMillis;
+    }
+
+    boolean isSyncEveryAppend() {
+        return flushMillis <= 0;
+    }
+
+    void recordAppend(int bytes) {
+        APPENDED_RECORDS.increment();
+        APPENDED_BYTES.add(bytes);
+    }
+
+    void recordReplay() {
+        REPLAYED_RECORDS.increment();
+    }
+
+    void recordFlush() {
+        FLUSHES.increment();
+    }
+}
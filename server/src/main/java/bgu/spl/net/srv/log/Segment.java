@@ -0,0 +1,163 @@
+package bgu.spl.net.srv.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * One memory-mapped file of a channel log, named after the id of its first message.
+ * A record is [int payload length][int crc of the rest][long message id][long timestamp][payload], a length of 0 ends the records.
+ * Only the thread holding the channel lock appends, readers see the records up to end(), which is published after the record is complete.
+ */
+final class Segment {
+
+    static final int RECORD_HEADER = 24;
+    static final String SUFFIX = ".seg";
+
+    private final Path file;
+    private final long baseMessageId;
+    private final MappedByteBuffer buffer;
+    private volatile int end = 0;
+    private int flushed = 0; //guarded by flushLock, an append with sync and the flusher both flush
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private volatile long lastMessageId = -1;
+    private volatile long lastTimestamp = Long.MIN_VALUE;
+
+    private Segment(Path file, long baseMessageId, MappedByteBuffer buffer) {
+        this.file = file;
+        this.baseMessageId = baseMessageId;
+        this.buffer = buffer;
+    }
+
+    static Segment create(Path dir, long baseMessageId, int capacity) throws IOException {
+        Path file = dir.resolve(String.format("%020d", baseMessageId) + SUFFIX);
+        return new Segment(file, baseMessageId, map(file, capacity));
+    }
+
+    /**
+     * maps an existing segment and finds where its valid records end. a record torn by a crash fails its crc and is cut off
+     */
+    static Segment open(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        long baseMessageId = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        Segment segment = new Segment(file, baseMessageId, map(file, (int) Files.size(file)));
+        segment.recover();
+        return segment;
+    }
+
+    private static MappedByteBuffer map(Path file, int capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //the mapping stays valid after the channel is closed. a new file is extended sparsely to the capacity
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+
+    private void recover() {
+        int position = 0;
+        while (position + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER + length > buffer.capacity() || crc(position, length) != buffer.getInt(position + 4)) {
+                break;
+            }
+            lastMessageId = buffer.getLong(position + 8);
+            lastTimestamp = buffer.getLong(position + 16);
+            position += RECORD_HEADER + length;
+        }
+        end = position;
+        flushed = position;
+    }
+
+    private int crc(int position, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(position + 8, RECORD_HEADER - 8 + length));
+        return (int) crc.getValue();
+    }
+
+    boolean fits(int payloadLength) {
+        return end + RECORD_HEADER + payloadLength <= buffer.capacity();
+    }
+
+    //caller holds the channel lock and checked fits()
+    void append(long messageId, long timestamp, ByteBuffer payload) {
+        int position = end;
+        int length = payload.remaining();
+        buffer.putLong(position + 8, messageId);
+        buffer.putLong(position + 16, timestamp);
+        buffer.put(position + RECORD_HEADER, payload, payload.position(), length);
+        buffer.putInt(position + 4, crc(position, length));
+        //the length goes last, a record is never seen with a length and missing bytes
+        buffer.putInt(position, length);
+        lastMessageId = messageId;
+        lastTimestamp = timestamp;
+        end = position + RECORD_HEADER + length;
+    }
+
+    int end() {
+        return end;
+    }
+
+    long messageIdAt(int position) {
+        return buffer.getLong(position + 8);
+    }
+
+    long timestampAt(int position) {
+        return buffer.getLong(position + 16);
+    }
+
+    int payloadLengthAt(int position) {
+        return buffer.getInt(position);
+    }
+
+    //a heap copy, the handlers may write it long after the segment is gone
+    ByteBuffer copyPayloadAt(int position) {
+        int length = payloadLengthAt(position);
+        byte[] payload = new byte[length];
+        buffer.get(position + RECORD_HEADER, payload);
+        return ByteBuffer.wrap(payload);
+    }
+
+    long getBaseMessageId() {
+        return baseMessageId;
+    }
+
+    long getLastMessageId() {
+        return lastMessageId;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * writes the records appended since the last flush to the disk, one fsync for all of them
+     * @return true if there was anything to write
+     */
+    boolean flush() {
+        flushLock.lock();
+        try {
+            int target = end;
+            if (target <= flushed) {
+                return false;
+            }
+            buffer.force(flushed, target - flushed);
+            flushed = target;
+            return true;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+}
@@ -0,0 +1,569 @@
+package bgu.spl.net.srv.log;
+
+import bgu.spl.net.srv.AckMode;
+import bgu.spl.net.srv.Subscription;
+import bgu.spl.net.srv.metrics.LatencyHistogram;
+import bgu.spl.net.srv.metrics.ServerMetrics;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * The durable state of the users: their passwords and the subscriptions of their current login.
+ * Every change is a record appended to a memory-mapped write-ahead log, and every snapshot interval a background
+ * thread writes the whole state as a compact snapshot and deletes the logs it covers. At startup the newest snapshot
+ * and the logs after it are mapped and read once from start to end, so loading takes time in proportion to their size.
+ *
+ * A record is [int body length][int crc of the body][body]. A log holds one record per change, a snapshot one record
+ * per user with all its subscriptions, and both are read by the same code. A record torn by a crash fails its crc and ends the file.
+ * The files of generation g are wal-g (the changes after snapshot-g) and snapshot-g (the state when wal-g started).
+ *
+ * Turned on with -Dstomp.state.dir=&lt;dir&gt;, the other stomp.state.* properties tune it.
+ */
+public final class UserLog implements Closeable {
+
+    public static final String DIR_PROPERTY = "stomp.state.dir";
+    public static final String WAL_BYTES_PROPERTY = "stomp.state.wal.bytes";
+    public static final String SNAPSHOT_MILLIS_PROPERTY = "stomp.state.snapshot.millis";
+    public static final String FLUSH_MILLIS_PROPERTY = "stomp.state.flush.millis";
+
+    private static final String WAL_PREFIX = "wal-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int RECORD_HEADER = 8;
+
+    private static final byte USER = 1;
+    private static final byte SUBSCRIBED = 2;
+    private static final byte UNSUBSCRIBED = 3;
+    private static final byte LOGGED_OUT = 4;
+    private static final byte ACCOUNT = 5;
+
+    private static final LongAdder APPENDED_RECORDS = ServerMetrics.get().counter("state.wal.records");
+    private static final LongAdder LOADED_RECORDS = ServerMetrics.get().counter("state.loaded.records");
+    private static final LongAdder SNAPSHOTS = ServerMetrics.get().counter("state.snapshots");
+    private static final LatencyHistogram SNAPSHOT_NANOS = ServerMetrics.get().histogram("state.snapshot.nanos");
+
+    private final Path dir;
+    private final int walBytes;
+    private final long flushMillis;
+    //username, the user's state. the values are immutable, replaced under the lock in log order
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+    //appending a record and applying it to the accounts happen together under it, so a snapshot never misses a change
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Wal wal;
+    private long generation; //of the current wal, changed under the lock
+    private final ScheduledExecutorService flusher;
+    private final ScheduledExecutorService snapshots;
+
+    /**
+     * opens the state in dir and loads what it holds
+     * @param walBytes the size of a write-ahead log file
+     * @param snapshotMillis how often the state is written as a snapshot, if it changed
+     * @param flushMillis how often the written pages are forced to the disk, 0 to force on every change
+     */
+    public UserLog(Path dir, int walBytes, long snapshotMillis, long flushMillis) throws IOException {
+        this.dir = dir;
+        this.walBytes = walBytes;
+        this.flushMillis = flushMillis;
+
+        Files.createDirectories(dir);
+        long snapshotGeneration = -1;
+        List<Long> walGenerations = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.delete(file);//a snapshot that a crash left unfinished
+                } else if (name.startsWith(SNAPSHOT_PREFIX)) {
+                    snapshotGeneration = Math.max(snapshotGeneration, generationOf(name, SNAPSHOT_PREFIX));
+                } else if (name.startsWith(WAL_PREFIX)) {
+                    walGenerations.add(generationOf(name, WAL_PREFIX));
+                }
+            }
+        }
+        Collections.sort(walGenerations);
+        if (snapshotGeneration >= 0) {
+            load(file(SNAPSHOT_PREFIX, snapshotGeneration));
+        }
+        long lastGeneration = snapshotGeneration;
+        boolean changedSinceSnapshot = false;
+        for (long walGeneration : walGenerations) {
+            //older logs are already in the snapshot, they are deleted with the next one
+            if (walGeneration >= snapshotGeneration) {
+                changedSinceSnapshot |= load(file(WAL_PREFIX, walGeneration)) > 0;
+            }
+            lastGeneration = Math.max(lastGeneration, walGeneration);
+        }
+        //a fresh log after the loaded ones, the tail of the last one may be torn
+        generation = lastGeneration + 1;
+        wal = Wal.create(file(WAL_PREFIX, generation), walBytes);
+
+        ServerMetrics.get().gauge("state.users", () -> accounts.size());
+        flusher = flushMillis > 0 ? daemon("user-log-flusher") : null;
+        if (flusher != null) {
+            flusher.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        }
+        snapshots = daemon("user-log-snapshots");
+        snapshots.scheduleWithFixedDelay(this::snapshotIfChanged, snapshotMillis, snapshotMillis, TimeUnit.MILLISECONDS);
+        if (changedSinceSnapshot) {
+            snapshots.execute(this::snapshot);//the next restart reads one compact file instead of the logs
+        }
+    }
+
+    /**
+     * @return the state configured by the stomp.state.* system properties, null if stomp.state.dir is not set
+     */
+    public static UserLog fromSystemProperties() {
+        String dir = System.getProperty(DIR_PROPERTY);
+        if (dir == null) {
+            return null;
+        }
+        try {
+            UserLog log = new UserLog(Paths.get(dir),
+                    Integer.getInteger(WAL_BYTES_PROPERTY, 64 << 20),
+                    Long.getLong(SNAPSHOT_MILLIS_PROPERTY, 60_000),
+                    Long.getLong(FLUSH_MILLIS_PROPERTY, 10));
+            Runtime.getRuntime().addShutdownHook(new Thread(log::close, "user-log-close"));
+            return log;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("could not open the user state in " + dir, ex);
+        }
+    }
+
+    /**
+     * @return the users as loaded and changed since, a live view
+     */
+    public Collection<Account> accounts() {
+        return accounts.values();
+    }
+
+    public void userAdded(String username, String password) {
+        append(userRecord(username, password));
+    }
+
+    public void subscribed(String username, Subscription subscription) {
+        append(subscribedRecord(username, subscription));
+    }
+
+    public void unsubscribed(String username, int subscriptionId) {
+        byte[] user = utf8(username);
+        ByteBuffer body = ByteBuffer.allocate(1 + size(user) + 4);
+        body.put(UNSUBSCRIBED);
+        put(body, user);
+        body.putInt(subscriptionId);
+        append(body.flip());
+    }
+
+    /**
+     * the user's login ended, and its subscriptions with it
+     */
+    public void loggedOut(String username) {
+        byte[] user = utf8(username);
+        ByteBuffer body = ByteBuffer.allocate(1 + size(user));
+        body.put(LOGGED_OUT);
+        put(body, user);
+        append(body.flip());
+    }
+
+    private static ByteBuffer userRecord(String username, String password) {
+        byte[] user = utf8(username);
+        byte[] pass = utf8(password);
+        ByteBuffer body = ByteBuffer.allocate(1 + size(user) + size(pass));
+        body.put(USER);
+        put(body, user);
+        put(body, pass);
+        return body.flip();
+    }
+
+    private static ByteBuffer subscribedRecord(String username, Subscription subscription) {
+        byte[] user = utf8(username);
+        ByteBuffer body = ByteBuffer.allocate(1 + size(user) + size(subscription));
+        body.put(SUBSCRIBED);
+        put(body, user);
+        put(body, subscription);
+        return body.flip();
+    }
+
+    //a subscription is [destination][int id][byte ack mode][selector]
+    private static int size(Subscription subscription) {
+        return size(utf8(subscription.getDestination())) + 4 + 1 + size(utf8(subscription.getSelector()));
+    }
+
+    private static void put(ByteBuffer body, Subscription subscription) {
+        put(body, utf8(subscription.getDestination()));
+        body.putInt(subscription.getId());
+        body.put((byte) subscription.getAckMode().ordinal());
+        put(body, utf8(subscription.getSelector()));
+    }
+
+    private static Subscription subscription(ByteBuffer body) {
+        String destination = string(body);
+        int id = body.getInt();
+        AckMode ackMode = AckMode.values()[body.get()];
+        return new Subscription(destination, id, ackMode, string(body));
+    }
+
+    private void append(ByteBuffer body) {
+        lock.lock();
+        try {
+            Wal current = wal;
+            if (!current.fits(body.remaining())) {
+                current = roll(body.remaining());
+                snapshots.execute(this::snapshot);
+            }
+            current.append(body.duplicate());
+            apply(body);
+            APPENDED_RECORDS.increment();
+            if (flushMillis <= 0) {
+                current.flush();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();//the change still holds until the restart
+            apply(body);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //caller holds the lock. a record bigger than a log gets a log of its own size
+    private Wal roll(int bodyLength) throws IOException {
+        generation++;
+        wal = Wal.create(file(WAL_PREFIX, generation), Math.max(walBytes, RECORD_HEADER + bodyLength));
+        return wal;
+    }
+
+    private void snapshotIfChanged() {
+        if (wal.end() > 0) {
+            snapshot();
+        }
+    }
+
+    //only the snapshot thread runs it
+    private void snapshot() {
+        long started = System.nanoTime();
+        try {
+            Wal previous;
+            long snapshotGeneration;
+            lock.lock();
+            try {
+                previous = wal;
+                roll(0);
+                snapshotGeneration = generation;
+            } finally {
+                lock.unlock();
+            }
+            previous.flush();
+            //read without the lock: each account is at least as new as the start of the new log, and replaying
+            //the log over a newer account gives the same state, every record sets its value whatever was there before
+            Path temp = dir.resolve(SNAPSHOT_PREFIX + String.format("%020d", snapshotGeneration) + TEMP_SUFFIX);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+                for (Account account : accounts.values()) {
+                    ByteBuffer body = account.record();
+                    if (buffer.remaining() < RECORD_HEADER + body.remaining()) {
+                        drain(channel, buffer);
+                        if (buffer.capacity() < RECORD_HEADER + body.remaining()) {
+                            buffer = ByteBuffer.allocateDirect(RECORD_HEADER + body.remaining());
+                        }
+                    }
+                    buffer.putInt(body.remaining()).putInt(crc(body)).put(body);
+                }
+                drain(channel, buffer);
+                channel.force(true);
+            }
+            Files.move(temp, file(SNAPSHOT_PREFIX, snapshotGeneration), StandardCopyOption.ATOMIC_MOVE);
+            //only now the older snapshots and the logs the new one covers can go
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if ((name.startsWith(SNAPSHOT_PREFIX) && !name.endsWith(TEMP_SUFFIX) && generationOf(name, SNAPSHOT_PREFIX) < snapshotGeneration)
+                            || (name.startsWith(WAL_PREFIX) && generationOf(name, WAL_PREFIX) < snapshotGeneration)) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            SNAPSHOTS.increment();
+        } catch (IOException | RuntimeException ex) {
+            ex.printStackTrace();//the logs are still there, the next snapshot tries again
+        }
+        SNAPSHOT_NANOS.record(System.nanoTime() - started);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    //maps the file and applies its records in order, up to the first one that is not complete
+    private long load(Path file) throws IOException {
+        long size = Files.size(file);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too big to map");
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        long records = 0;
+        int position = 0;
+        while (position + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER + length > buffer.capacity()) {
+                break;
+            }
+            ByteBuffer body = buffer.slice(position + RECORD_HEADER, length);
+            if (crc(body) != buffer.getInt(position + 4)) {
+                break;
+            }
+            apply(body);
+            records++;
+            position += RECORD_HEADER + length;
+        }
+        LOADED_RECORDS.add(records);
+        return records;
+    }
+
+    //the one place a record changes the state, for loading and for live changes alike
+    private void apply(ByteBuffer record) {
+        ByteBuffer body = record.duplicate();
+        byte type = body.get();
+        String username = string(body);
+        if (type == USER) {
+            accounts.put(username, new Account(username, string(body), List.of()));
+            return;
+        }
+        if (type == ACCOUNT) {
+            String password = string(body);
+            Subscription[] subscriptions = new Subscription[body.getInt()];
+            for (int i = 0; i < subscriptions.length; i++) {
+                subscriptions[i] = subscription(body);
+            }
+            accounts.put(username, new Account(username, password, List.of(subscriptions)));
+            return;
+        }
+        Account account = accounts.get(username);
+        if (account == null) {
+            return;
+        }
+        switch (type) {
+            case SUBSCRIBED:
+                Subscription subscription = subscription(body);
+                accounts.put(username, account.without(subscription.getId()).with(subscription));
+                break;
+            case UNSUBSCRIBED:
+                accounts.put(username, account.without(body.getInt()));
+                break;
+            case LOGGED_OUT:
+                accounts.put(username, new Account(username, account.password, List.of()));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void flush() {
+        wal.flush();
+    }
+
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        snapshots.shutdownNow();
+        lock.lock();
+        try {
+            wal.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Path file(String prefix, long generation) {
+        return dir.resolve(prefix + String.format("%020d", generation) + SUFFIX);
+    }
+
+    private static long generationOf(String name, String prefix) {
+        return Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static ScheduledExecutorService daemon(String name) {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static int crc(ByteBuffer body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        return (int) crc.getValue();
+    }
+
+    //a string is [int byte length][utf-8 bytes], a length of -1 is null
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int size(byte[] value) {
+        return 4 + (value == null ? 0 : value.length);
+    }
+
+    private static void put(ByteBuffer body, byte[] value) {
+        if (value == null) {
+            body.putInt(-1);
+        } else {
+            body.putInt(value.length).put(value);
+        }
+    }
+
+    private static String string(ByteBuffer body) {
+        int length = body.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        body.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * a user as the state holds it: the password and the subscriptions of the login that has not ended. immutable
+     */
+    public static final class Account {
+        private final String username;
+        private final String password;
+        private final List<Subscription> subscriptions;
+
+        private Account(String username, String password, List<Subscription> subscriptions) {
+            this.username = username;
+            this.password = password;
+            this.subscriptions = subscriptions;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        /**
+         * @return the subscriptions the user had when the server stopped, empty if it was not logged in
+         */
+        public List<Subscription> getSubscriptions() {
+            return subscriptions;
+        }
+
+        private Account with(Subscription subscription) {
+            List<Subscription> changed = new ArrayList<>(subscriptions);
+            changed.add(subscription);
+            return new Account(username, password, List.copyOf(changed));
+        }
+
+        private Account without(int subscriptionId) {
+            List<Subscription> changed = new ArrayList<>(subscriptions);
+            changed.removeIf(subscription -> subscription.getId() == subscriptionId);
+            return changed.size() == subscriptions.size() ? this : new Account(username, password, List.copyOf(changed));
+        }
+
+        //the snapshot record: [name][password][int count][subscriptions]
+        private ByteBuffer record() {
+            byte[] user = utf8(username);
+            byte[] pass = utf8(password);
+            int size = 1 + size(user) + size(pass) + 4;
+            for (Subscription subscription : subscriptions) {
+                size += size(subscription);
+            }
+            ByteBuffer body = ByteBuffer.allocate(size);
+            body.put(ACCOUNT);
+            put(body, user);
+            put(body, pass);
+            body.putInt(subscriptions.size());
+            for (Subscription subscription : subscriptions) {
+                put(body, subscription);
+            }
+            return body.flip();
+        }
+    }
+
+    /**
+     * one memory-mapped write-ahead log file. appends are made under the lock of the UserLog, flushes by one thread at a time
+     */
+    private static final class Wal {
+        private final MappedByteBuffer buffer;
+        private volatile int end = 0;
+        private int flushed = 0; //guarded by flushLock
+        private final ReentrantLock flushLock = new ReentrantLock();
+
+        private Wal(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        static Wal create(Path file, int capacity) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                //the mapping stays valid after the channel is closed. a new file is extended sparsely to the capacity
+                return new Wal(channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+            }
+        }
+
+        boolean fits(int bodyLength) {
+            return end + RECORD_HEADER + bodyLength <= buffer.capacity();
+        }
+
+        void append(ByteBuffer body) {
+            int position = end;
+            int length = body.remaining();
+            buffer.putInt(position + 4, crc(body));
+            buffer.put(position + RECORD_HEADER, body, body.position(), length);
+            //the length goes last, a record is never seen with a length and missing bytes
+            buffer.putInt(position, length);
+            end = position + RECORD_HEADER + length;
+        }
+
+        int end() {
+            return end;
+        }
+
+        void flush() {
+            flushLock.lock();
+            try {
+                int target = end;
+                if (target > flushed) {
+                    buffer.force(flushed, target - flushed);
+                    flushed = target;
+                }
+            } finally {
+                flushLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package bgu.spl.net.srv.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram of durations in nanoseconds that any number of threads can record into without locks.
+ * Every power of two range is split into 64 linear buckets, so a reported value is within about 1.6% of the real one.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    //exact buckets below SUB_BUCKETS, then HALF buckets for every shift (a positive long has at most 63 bits)
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            //another thread raised the max, try again against the new one
+        }
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value of the bucket holding that percentile, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value; //small values are exact
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; //at least 1
+        int top = (int) (value >>> shift); //the highest SUB_BUCKET_BITS bits, between HALF and SUB_BUCKETS - 1
+        return SUB_BUCKETS + (shift - 1) * HALF + (top - HALF);
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long top = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,89 @@
+package bgu.spl.net.srv.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of the whole server process: striped counters, gauges read when asked for and latency histograms.
+ * Recording is lock-free and does not allocate, the hot paths look their metrics up once and keep the reference.
+ * Names are dotted, e.g. stomp.frames.in.SEND, and a histogram shows up in a snapshot as name.count, name.p50 and so on.
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+    public static final String OBJECT_NAME = "bgu.spl.net:type=ServerMetrics";
+
+    private static final ServerMetrics INSTANCE = new ServerMetrics();
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private ServerMetrics() {
+    }
+
+    public static ServerMetrics get() {
+        return INSTANCE;
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * registers a value that is only computed when a snapshot is taken. a later gauge with the same name replaces it
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    @Override
+    public Map<String, Long> getSnapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> snapshot.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            if (histogram.getCount() == 0) {
+                return; //nothing recorded yet, e.g. the commands only the server sends
+            }
+            snapshot.put(name + ".count", histogram.getCount());
+            snapshot.put(name + ".p50", histogram.getValueAtPercentile(50));
+            snapshot.put(name + ".p99", histogram.getValueAtPercentile(99));
+            snapshot.put(name + ".p999", histogram.getValueAtPercentile(99.9));
+            snapshot.put(name + ".max", histogram.getMax());
+        });
+        return snapshot;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        getSnapshot().forEach((name, value) -> report.append(name).append(':').append(value).append('\n'));
+        return report.toString();
+    }
+
+    /**
+     * makes the metrics visible over JMX. calling it again does nothing
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
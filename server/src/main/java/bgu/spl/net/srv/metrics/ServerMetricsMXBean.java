@@ -0,0 +1,17 @@
+package bgu.spl.net.srv.metrics;
+
+import java.util.Map;
+
+//what the server metrics look like over JMX (jconsole, jcmd, any JMX scraper)
+public interface ServerMetricsMXBean {
+
+    /**
+     * @return every counter, gauge and histogram percentile by name, read at the time of the call
+     */
+    Map<String, Long> getSnapshot();
+
+    /**
+     * @return the snapshot as "name:value" lines, the same text the $SYS/metrics destination sends
+     */
+    String getReport();
+}
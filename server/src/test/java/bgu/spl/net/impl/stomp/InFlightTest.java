@@ -0,0 +1,163 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import bgu.spl.net.srv.AckMode;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class InFlightTest {
+
+    private static ByteBuffer part(long messageId) {
+        return ByteBuffer.wrap(("m" + messageId).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static boolean add(InFlight inFlight, long messageId, long deadline) {
+        return inFlight.add(messageId, ByteBuffer.allocate(0), part(messageId), deadline);
+    }
+
+    private static List<String> texts(List<ByteBuffer> parts) {
+        List<String> texts = new ArrayList<>();
+        for (ByteBuffer part : parts) {
+            texts.add(StandardCharsets.US_ASCII.decode(part.duplicate()).toString());
+        }
+        return texts;
+    }
+
+    //the shared parts of the frames takeDue gave back
+    private static List<String> due(InFlight inFlight, long now, long nextDeadline) {
+        List<ByteBuffer[]> due = new ArrayList<>();
+        inFlight.takeDue(now, nextDeadline, due);
+        List<ByteBuffer> parts = new ArrayList<>();
+        for (ByteBuffer[] frame : due) {
+            parts.add(frame[1]);
+        }
+        return texts(parts);
+    }
+
+    @Test
+    void individualAckTakesOnlyThatMessage() {
+        InFlight inFlight = new InFlight("police", AckMode.CLIENT_INDIVIDUAL, 8);
+        for (long id = 1; id <= 3; id++) {
+            add(inFlight, id, 100);
+        }
+        assertEquals(1, inFlight.ack(2));
+        assertEquals(0, inFlight.ack(2));
+        assertEquals(0, inFlight.ack(42));
+        assertEquals(List.of("m1", "m3"), texts(inFlight.drain()));
+        assertTrue(inFlight.drain().isEmpty());
+    }
+
+    @Test
+    void clientAckIsCumulative() {
+        InFlight inFlight = new InFlight("police", AckMode.CLIENT, 8);
+        for (long id = 1; id <= 4; id++) {
+            add(inFlight, id, 100);
+        }
+        assertEquals(2, inFlight.ack(2));
+        assertEquals(1, inFlight.ack(3));
+        assertEquals(List.of("m4"), texts(inFlight.drain()));
+    }
+
+    @Test
+    void individualNackMakesOnlyThatMessageDue() {
+        InFlight inFlight = new InFlight("police", AckMode.CLIENT_INDIVIDUAL, 8);
+        for (long id = 1; id <= 3; id++) {
+            add(inFlight, id, 100);
+        }
+        assertEquals(1, inFlight.nack(2));
+        assertEquals(List.of("m2"), due(inFlight, 50, 200));
+        assertEquals(List.of(), due(inFlight, 50, 200));
+        //the one sent again is still waiting for its ack, now at the end
+        assertEquals(List.of("m1", "m3", "m2"), texts(inFlight.drain()));
+    }
+
+    @Test
+    void clientNackIsCumulative() {
+        InFlight inFlight = new InFlight("police", AckMode.CLIENT, 8);
+        for (long id = 1; id <= 3; id++) {
+            add(inFlight, id, 100);
+        }
+        assertEquals(2, inFlight.nack(2));
+        assertEquals(List.of("m1", "m2"), due(inFlight, 50, 200));
+        assertEquals(0, inFlight.nack(42));
+    }
+
+    @Test
+    void takeDueSendsAgainInDeadlineOrder() {
+        InFlight inFlight = new InFlight("police", AckMode.CLIENT_INDIVIDUAL, 8);
+        add(inFlight, 1, 10);
+        add(inFlight, 2, 20);
+        assertEquals(List.of(), due(inFlight, 5, 100));
+        assertEquals(List.of("m1"), due(inFlight, 15, 100));
+        assertEquals(List.of("m2"), due(inFlight, 25, 110));
+        assertEquals(List.of("m1", "m2"), due(inFlight, 110, 200));
+        //an ack of a message that was sent again still counts
+        assertEquals(1, inFlight.ack(1));
+        assertEquals(List.of("m2"), texts(inFlight.drain()));
+    }
+
+    @Test
+    void aFullRingGivesUpTheOldest() {
+        InFlight inFlight = new InFlight("police", AckMode.CLIENT_INDIVIDUAL, 4);
+        for (long id = 1; id <= 4; id++) {
+            assertFalse(add(inFlight, id, 100));
+        }
+        assertTrue(add(inFlight, 5, 100));
+        assertEquals(0, inFlight.ack(1));
+        assertEquals(List.of("m2", "m3", "m4", "m5"), texts(inFlight.drain()));
+    }
+
+    @Test
+    void aMessageSentAgainReplacesItsEarlierSend() {
+        InFlight inFlight = new InFlight("police", AckMode.CLIENT_INDIVIDUAL, 8);
+        add(inFlight, 1, 100);
+        add(inFlight, 2, 100);
+        add(inFlight, 1, 100);
+        assertEquals(1, inFlight.ack(1));
+        assertEquals(0, inFlight.ack(1));
+        assertEquals(List.of("m2"), texts(inFlight.drain()));
+    }
+
+    //random sends and acks against a map of the waiting ids to their send position, so the index sees many collisions and removals.
+    //the ring holds capacity sends from the oldest waiting one on, acknowledged ones in between included
+    @Test
+    void matchesASimpleModel() {
+        int capacity = 64;
+        InFlight inFlight = new InFlight("police", AckMode.CLIENT_INDIVIDUAL, capacity);
+        Map<Long, Long> waiting = new LinkedHashMap<>();
+        Random random = new Random(7);
+        long nextId = 0;
+        int givenUp = 0;
+        for (int step = 0; step < 100_000; step++) {
+            if (random.nextInt(3) > 0 || waiting.isEmpty()) {
+                long id = nextId++;
+                boolean full = !waiting.isEmpty() && id - waiting.values().iterator().next() >= capacity;
+                assertEquals(full, add(inFlight, id, 100));
+                if (full) {
+                    waiting.remove(waiting.keySet().iterator().next());
+                    givenUp++;
+                }
+                waiting.put(id, id);
+            } else {
+                //acks an id that may or may not still be waiting
+                long id = nextId - 1 - random.nextInt((int) Math.min(nextId, capacity * 2));
+                assertEquals(waiting.remove(id) != null ? 1 : 0, inFlight.ack(id));
+            }
+        }
+        assertTrue(givenUp > 0);
+        List<String> expected = new ArrayList<>();
+        for (long id : waiting.keySet()) {
+            expected.add("m" + id);
+        }
+        assertEquals(expected, texts(inFlight.drain()));
+    }
+}
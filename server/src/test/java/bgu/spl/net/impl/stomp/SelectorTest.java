@@ -0,0 +1,133 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class SelectorTest {
+
+    //the server matches on the channel name, a SEND to /police publishes on police
+    private static final String DESTINATION = "police";
+
+    private static EventReport report(String user, String city, String eventName, long dateTime, boolean active, String description) {
+        byte[] body = ("user:" + user + "\n"
+                + (city == null ? "" : "city:" + city + "\n")
+                + "event name:" + eventName + "\n"
+                + "date time:" + dateTime + "\n"
+                + "general information:\n"
+                + "    active:" + active + "\n"
+                + "    forces_arrival_at_scene:false\n"
+                + "description:\n"
+                + description + "\n").getBytes(StandardCharsets.UTF_8);
+        EventReport report = EventReport.parse(body, 0, body.length);
+        assertNotNull(report);
+        return report;
+    }
+
+    private static boolean matches(String selector, EventReport report) {
+        return Selector.compile(selector).matches(DESTINATION, report);
+    }
+
+    @Test
+    void andBindsTighterThanOr() {
+        assertEquals("(city = 'Gotham' OR (active = true AND user = 'bob'))",
+                Selector.compile("city = 'Gotham' OR active = true AND user = 'bob'").toString());
+        EventReport report = report("alice", "Gotham", "fire", 100, false, "smoke");
+        assertTrue(matches("city = 'Gotham' OR active = true AND user = 'bob'", report));
+        assertFalse(matches("(city = 'Gotham' OR active = true) AND user = 'bob'", report));
+    }
+
+    @Test
+    void notBindsTighterThanAnd() {
+        assertEquals("(NOT active = true AND city = 'Gotham')", Selector.compile("NOT active = true AND city = 'Gotham'").toString());
+        EventReport report = report("alice", "Gotham", "fire", 100, false, "smoke");
+        assertTrue(matches("NOT active = true AND city = 'Gotham'", report));
+        assertFalse(matches("NOT (active = false AND city = 'Gotham')", report));
+        assertTrue(matches("NOT NOT city = 'Gotham'", report));
+    }
+
+    @Test
+    void keywordsAndSpacingDoNotChangeTheCanonicalText() {
+        Selector selector = Selector.compile("city='Gotham'   and not(active <> TRUE)");
+        assertEquals("(city = 'Gotham' AND NOT active != true)", selector.toString());
+        assertSame(selector, Selector.compile("CITY = 'Gotham' AND NOT (ACTIVE != true)"));
+        assertSame(selector, Selector.forText(selector.toString()));
+    }
+
+    @Test
+    void quotesInsideStrings() {
+        Selector selector = Selector.compile("city = 'O''Brien''s'");
+        assertEquals("city = 'O''Brien''s'", selector.toString());
+        assertTrue(selector.matches(DESTINATION, report("alice", "O'Brien's", "fire", 100, true, "")));
+        assertFalse(selector.matches(DESTINATION, report("alice", "OBriens", "fire", 100, true, "")));
+        assertTrue(matches("description = 'smoke and fire'", report("alice", "Gotham", "fire", 100, true, "smoke and fire")));
+        assertTrue(matches("event_name = 'AND'", report("alice", "Gotham", "AND", 100, true, "")));
+    }
+
+    @Test
+    void dateTimeComparisons() {
+        EventReport report = report("alice", "Gotham", "fire", 1700000000, true, "");
+        assertTrue(matches("date_time = 1700000000", report));
+        assertTrue(matches("date_time >= 1700000000 AND date_time <= 1700000000", report));
+        assertTrue(matches("date_time > 1699999999", report));
+        assertFalse(matches("date_time < 1700000000", report));
+        assertTrue(matches("date_time <> 1", report));
+    }
+
+    @Test
+    void missingFields() {
+        //a body that is not a report only has its destination
+        assertTrue(Selector.compile("destination = 'police'").matches(DESTINATION, null));
+        assertFalse(Selector.compile("destination = '/police'").matches(DESTINATION, null));
+        assertFalse(Selector.compile("city = 'Gotham'").matches(DESTINATION, null));
+        assertFalse(Selector.compile("city != 'Gotham'").matches(DESTINATION, null));
+        assertFalse(Selector.compile("date_time > 0").matches(DESTINATION, null));
+        assertTrue(Selector.compile("NOT active = true").matches(DESTINATION, null));
+        //a report without a city has an empty one
+        EventReport noCity = report("alice", null, "fire", 100, true, "");
+        assertTrue(matches("city = ''", noCity));
+        assertFalse(matches("city = 'Gotham'", noCity));
+    }
+
+    @Test
+    void malformedSelectors() {
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile(""));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("city"));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("city ="));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("town = 'Gotham'"));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("city = Gotham"));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("city = 'Gotham"));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("city < 'Gotham'"));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("active = yes"));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("date_time = 'noon'"));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("(city = 'Gotham'"));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("city = 'Gotham')"));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("city = 'Gotham' AND"));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("city = 'Gotham' active = true"));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("city ! 'Gotham'"));
+        assertThrows(IllegalArgumentException.class, () -> Selector.compile("city = 'Gotham' ; drop"));
+    }
+
+    @Test
+    void theCacheKeepsTheSelectorsUsedLast() {
+        Selector kept = Selector.compile("user = 'kept'");
+        for (int i = 0; i < 3000; i++) {
+            Selector.compile("date_time = " + i);
+            if (i % 100 == 0) {
+                assertSame(kept, Selector.forText(kept.toString()));
+            }
+        }
+        assertTrue(Selector.cachedCount() <= Integer.getInteger(Selector.CACHE_SIZE_PROPERTY, 1024));
+        assertSame(kept, Selector.forText(kept.toString()));
+        //a dropped selector is compiled again from its canonical text
+        Selector again = Selector.forText("date_time = 0");
+        assertEquals("date_time = 0", again.toString());
+        assertTrue(again.matches(DESTINATION, report("alice", "Gotham", "fire", 0, true, "")));
+    }
+}
@@ -0,0 +1,129 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class ActorThreadPoolTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int TASKS_PER_PRODUCER = 5000;
+
+    @Test
+    void theMailboxGivesTasksOldestFirst() {
+        Mailbox mailbox = new Mailbox();
+        assertNull(mailbox.poll());
+        assertFalse(mailbox.hasPending());
+        Runnable first = () -> { };
+        Runnable second = () -> { };
+        mailbox.push(first);
+        mailbox.push(second);
+        assertTrue(mailbox.hasPending());
+        assertSame(first, mailbox.poll());
+        assertSame(second, mailbox.poll());
+        assertNull(mailbox.poll());
+        assertFalse(mailbox.hasPending());
+    }
+
+    @Test
+    void onlyOneThreadOwnsTheMailbox() {
+        Mailbox mailbox = new Mailbox();
+        assertTrue(mailbox.trySchedule());
+        assertFalse(mailbox.trySchedule());
+        mailbox.unschedule();
+        assertTrue(mailbox.trySchedule());
+    }
+
+    @Test
+    void oneTaskPerTurn() throws InterruptedException {
+        runsEachActorInSubmitOrder(1);
+    }
+
+    @Test
+    void severalTasksPerTurn() throws InterruptedException {
+        runsEachActorInSubmitOrder(16);
+    }
+
+    //producers submit to two actors at once, each actor runs alone and in the order each producer submitted
+    private static void runsEachActorInSubmitOrder(int tasksPerTurn) throws InterruptedException {
+        ActorThreadPool pool = new ActorThreadPool(4, tasksPerTurn);
+        try {
+            Actor[] actors = {new Actor(), new Actor()};
+            CountDownLatch done = new CountDownLatch(actors.length * PRODUCERS * TASKS_PER_PRODUCER);
+            List<Thread> producers = new ArrayList<>();
+            for (int p = 0; p < PRODUCERS; p++) {
+                int producer = p;
+                producers.add(Thread.ofPlatform().start(() -> {
+                    for (int i = 0; i < TASKS_PER_PRODUCER; i++) {
+                        for (Actor actor : actors) {
+                            int sequence = i;
+                            pool.submit(actor.mailbox, () -> {
+                                actor.run(producer, sequence);
+                                done.countDown();
+                            });
+                        }
+                    }
+                }));
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            for (Actor actor : actors) {
+                assertFalse(actor.overlapped.get());
+                assertFalse(actor.outOfOrder.get());
+                for (int p = 0; p < PRODUCERS; p++) {
+                    assertEquals(TASKS_PER_PRODUCER, actor.next[p]);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void aFailedTaskDoesNotStopTheActor() throws InterruptedException {
+        ActorThreadPool pool = new ActorThreadPool(1);
+        try {
+            Mailbox mailbox = new Mailbox();
+            CountDownLatch ran = new CountDownLatch(1);
+            pool.submit(mailbox, () -> {
+                throw new IllegalStateException("expected by the test");
+            });
+            pool.submit(mailbox, ran::countDown);
+            assertTrue(ran.await(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static final class Actor {
+        private final Mailbox mailbox = new Mailbox();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicBoolean overlapped = new AtomicBoolean();
+        private final AtomicBoolean outOfOrder = new AtomicBoolean();
+        //the next sequence expected from each producer, only touched by the actor's own tasks
+        private final int[] next = new int[PRODUCERS];
+
+        private void run(int producer, int sequence) {
+            if (running.incrementAndGet() != 1) {
+                overlapped.set(true);
+            }
+            if (next[producer] != sequence) {
+                outOfOrder.set(true);
+            }
+            next[producer] = sequence + 1;
+            running.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class DestinationTrieTest {
+
+    private final DestinationTrie trie = new DestinationTrie();
+
+    //the connection ids of the subscribers, in their order
+    private static List<Integer> connections(Subscribers subscribers) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < subscribers.size(); i++) {
+            ids.add(subscribers.connectionId(i));
+        }
+        return ids;
+    }
+
+    private List<Integer> match(String destination) {
+        return connections(trie.match(destination, Subscribers.EMPTY));
+    }
+
+    private void subscribe(String pattern, int connectionId) {
+        trie.subscribe(pattern, connectionId, 1, AckMode.AUTO, null);
+    }
+
+    @Test
+    void anySegmentMatchesExactlyOne() {
+        assertTrue(DestinationTrie.matches("police/*", "police/north"));
+        assertFalse(DestinationTrie.matches("police/*", "police"));
+        assertFalse(DestinationTrie.matches("police/*", "police/north/3"));
+        assertTrue(DestinationTrie.matches("*/north", "police/north"));
+        assertTrue(DestinationTrie.matches("police/*/3", "police/north/3"));
+        assertFalse(DestinationTrie.matches("police/*/3", "police/north/4"));
+    }
+
+    @Test
+    void anySegmentsMatchesNoneOrMore() {
+        assertTrue(DestinationTrie.matches("police/#", "police"));
+        assertTrue(DestinationTrie.matches("police/#", "police/north"));
+        assertTrue(DestinationTrie.matches("police/#", "police/north/3"));
+        assertFalse(DestinationTrie.matches("police/#", "fire/north"));
+        assertTrue(DestinationTrie.matches("#", "fire/north"));
+    }
+
+    @Test
+    void tellsPatternsApart() {
+        assertTrue(DestinationTrie.isPattern("police/*"));
+        assertTrue(DestinationTrie.isPattern("#"));
+        assertFalse(DestinationTrie.isPattern("police/north"));
+        assertFalse(DestinationTrie.isPattern("police*"));
+        assertTrue(DestinationTrie.isValidPattern("police/#"));
+        assertFalse(DestinationTrie.isValidPattern("#/north"));
+        assertFalse(DestinationTrie.isValidPattern("police/#/north"));
+    }
+
+    @Test
+    void matchFindsEveryMatchingSubscription() {
+        subscribe("police/*", 1);
+        subscribe("police/#", 2);
+        subscribe("*/north", 3);
+        subscribe("fire/#", 4);
+        subscribe("police/north/*", 5);
+        assertEquals(List.of(1, 2, 3), sorted(match("police/north")));
+        assertEquals(List.of(2), match("police"));
+        assertEquals(List.of(2, 5), sorted(match("police/north/3")));
+        assertEquals(List.of(3, 4), sorted(match("fire/north")));
+        assertEquals(List.of(), match("ambulance"));
+    }
+
+    @Test
+    void theExactSubscribersComeFirst() {
+        subscribe("police/#", 2);
+        Subscribers exact = Subscribers.EMPTY.with(9, 1, AckMode.AUTO);
+        assertEquals(List.of(9, 2), connections(trie.match("police", exact)));
+    }
+
+    @Test
+    void withoutPatternsTheExactSubscribersAreReturnedAsTheyAre() {
+        Subscribers exact = Subscribers.EMPTY.with(9, 1, AckMode.AUTO);
+        assertSame(exact, trie.match("police", exact));
+    }
+
+    @Test
+    void aChangeOfTheSubscriptionsInvalidatesTheCache() {
+        subscribe("police/*", 1);
+        Subscribers first = trie.match("police/north", Subscribers.EMPTY);
+        assertSame(first, trie.match("police/north", Subscribers.EMPTY));
+        subscribe("police/#", 2);
+        assertEquals(List.of(1, 2), sorted(match("police/north")));
+        trie.unsubscribe("police/*", 1);
+        assertEquals(List.of(2), match("police/north"));
+        //unsubscribing a connection that is not there changes nothing
+        Subscribers kept = trie.match("police/north", Subscribers.EMPTY);
+        trie.unsubscribe("police/*", 7);
+        trie.unsubscribe("ambulance/*", 1);
+        assertSame(kept, trie.match("police/north", Subscribers.EMPTY));
+        trie.unsubscribe("police/#", 2);
+        assertEquals(List.of(), match("police/north"));
+    }
+
+    @Test
+    void newExactSubscribersAreNotAnsweredFromTheCache() {
+        subscribe("police/#", 2);
+        Subscribers before = trie.match("police", Subscribers.EMPTY);
+        Subscribers exact = Subscribers.EMPTY.with(9, 1, AckMode.AUTO);
+        Subscribers after = trie.match("police", exact);
+        assertNotSame(before, after);
+        assertEquals(List.of(9, 2), connections(after));
+    }
+
+    @Test
+    void aFullCacheStartsOver() {
+        DestinationTrie small = new DestinationTrie(2);
+        small.subscribe("police/*", 1, 1, AckMode.AUTO, null);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(List.of(1), connections(small.match("police/" + i, Subscribers.EMPTY)));
+        }
+        assertEquals(List.of(1), connections(small.match("police/0", Subscribers.EMPTY)));
+    }
+
+    private static List<Integer> sorted(List<Integer> ids) {
+        List<Integer> sorted = new ArrayList<>(ids);
+        sorted.sort(null);
+        return sorted;
+    }
+}
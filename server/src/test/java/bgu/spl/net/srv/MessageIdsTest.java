@@ -0,0 +1,110 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MessageIdsTest {
+
+    private static final String[] CHANNELS = {"police", "fire", "ambulance"};
+
+    //small blocks, so the tests cross many of them
+    @BeforeEach
+    void smallBlocks() {
+        System.setProperty(MessageIds.BLOCK_PROPERTY, "4");
+    }
+
+    @AfterEach
+    void defaultBlocks() {
+        System.clearProperty(MessageIds.BLOCK_PROPERTY);
+    }
+
+    @Test
+    void startsAtTheFirstId() {
+        MessageIds ids = new MessageIds(1000);
+        assertEquals(1000, ids.reserve("police", 1));
+        assertEquals(1001, ids.reserve("police", 1));
+        assertTrue(ids.reserve("fire", 1) >= 1004);
+    }
+
+    @Test
+    void theIdsOfAChannelKeepGrowingAcrossBlocks() {
+        MessageIds ids = new MessageIds(0);
+        long last = -1;
+        for (int i = 0; i < 100; i++) {
+            //the other channels take blocks in between
+            ids.reserve(CHANNELS[1 + i % 2], 1);
+            long id = ids.reserve(CHANNELS[0], 1);
+            assertTrue(id > last);
+            last = id;
+        }
+    }
+
+    @Test
+    void aLaterBlockStartsAfterEveryEarlierOne() {
+        MessageIds ids = new MessageIds(0);
+        long police = ids.reserve("police", 1);
+        long fire = ids.reserve("fire", 1);
+        //police's block is used up here, its next one comes after fire's
+        for (int i = 0; i < 3; i++) {
+            ids.reserve("police", 1);
+        }
+        assertTrue(fire > police);
+        assertTrue(ids.reserve("police", 1) > fire);
+    }
+
+    @Test
+    void aBatchIsNeverSplit() {
+        MessageIds ids = new MessageIds(0);
+        long first = ids.reserve("police", 3);
+        //does not fit in what is left of the block, so it starts a new one
+        long second = ids.reserve("police", 3);
+        assertTrue(second >= first + 4);
+        //bigger than a block, it gets a block of its own size
+        long big = ids.reserve("police", 10);
+        long after = ids.reserve("police", 1);
+        assertTrue(after >= big + 10);
+    }
+
+    //concurrent publishers of several channels: every id is handed out once and each thread sees its channel's ids grow
+    @Test
+    void noTwoMessagesShareAnId() throws InterruptedException {
+        MessageIds ids = new MessageIds(0);
+        int threads = 6;
+        int reserves = 20_000;
+        List<long[]> taken = new ArrayList<>();
+        List<Thread> publishers = new ArrayList<>();
+        boolean[] ordered = new boolean[threads];
+        for (int t = 0; t < threads; t++) {
+            long[] mine = new long[reserves];
+            taken.add(mine);
+            String channel = CHANNELS[t % CHANNELS.length];
+            int thread = t;
+            publishers.add(Thread.ofPlatform().start(() -> {
+                boolean grows = true;
+                for (int i = 0; i < reserves; i++) {
+                    mine[i] = ids.reserve(channel, 1);
+                    grows &= i == 0 || mine[i] > mine[i - 1];
+                }
+                ordered[thread] = grows;
+            }));
+        }
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+        Set<Long> seen = new HashSet<>();
+        for (int t = 0; t < threads; t++) {
+            assertTrue(ordered[t]);
+            for (long id : taken.get(t)) {
+                assertTrue(seen.add(id));
+            }
+        }
+    }
+}
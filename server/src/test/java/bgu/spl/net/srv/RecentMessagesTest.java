@@ -0,0 +1,95 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class RecentMessagesTest {
+
+    private static ByteBuffer part(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static List<String> texts(List<ByteBuffer> parts) {
+        List<String> texts = new ArrayList<>();
+        for (ByteBuffer part : parts) {
+            texts.add(StandardCharsets.US_ASCII.decode(part).toString());
+        }
+        return texts;
+    }
+
+    //adds the messages and records them as delivered to the given snapshot version
+    private static void publish(RecentMessages recent, long version, String... texts) {
+        for (String text : texts) {
+            recent.delivered(recent.add(part(text)), version);
+        }
+    }
+
+    @Test
+    void keepsTheLastMessagesAfterTheRingWrapsAround() {
+        RecentMessages recent = new RecentMessages(4, 1 << 20);
+        for (int i = 0; i < 10; i++) {
+            publish(recent, 1, "m" + i);
+        }
+        assertEquals(List.of("m6", "m7", "m8", "m9"), texts(recent.missedBy(2, 100)));
+        assertEquals(List.of("m8", "m9"), texts(recent.missedBy(2, 2)));
+        //a second wrap replaces all of them
+        for (int i = 10; i < 14; i++) {
+            publish(recent, 1, "m" + i);
+        }
+        assertEquals(List.of("m10", "m11", "m12", "m13"), texts(recent.missedBy(2, 100)));
+    }
+
+    @Test
+    void skipsTheMessagesTheSubscriberGotLive() {
+        RecentMessages recent = new RecentMessages(8, 1 << 20);
+        publish(recent, 1, "before", "also before");
+        publish(recent, 2, "live", "also live");
+        assertEquals(List.of("before", "also before"), texts(recent.missedBy(2, 100)));
+        assertEquals(List.of(), texts(recent.missedBy(1, 100)));
+    }
+
+    @Test
+    void missedBetweenGivesOnlyTheMessagesOfTheAbsence() {
+        RecentMessages recent = new RecentMessages(8, 1 << 20);
+        publish(recent, 1, "got before leaving");
+        publish(recent, 2, "away");
+        publish(recent, 3, "also away");
+        publish(recent, 4, "got after joining");
+        assertEquals(List.of("away", "also away"), texts(recent.missedBetween(2, 4, 100)));
+    }
+
+    @Test
+    void theByteBudgetDropsTheOldest() {
+        RecentMessages recent = new RecentMessages(8, 10);
+        publish(recent, 1, "aaaa", "bbbb", "cccc", "dddd");
+        assertEquals(List.of("cccc", "dddd"), texts(recent.missedBy(2, 100)));
+        //dropping for the budget also works once the ring wrapped
+        for (int i = 0; i < 8; i++) {
+            publish(recent, 1, "x" + i + "xx");
+        }
+        assertEquals(List.of("x6xx", "x7xx"), texts(recent.missedBy(2, 100)));
+    }
+
+    @Test
+    void theReturnedPartsDoNotShareAPosition() {
+        RecentMessages recent = new RecentMessages(2, 1 << 20);
+        publish(recent, 1, "kept");
+        ByteBuffer first = recent.missedBy(2, 1).get(0);
+        first.position(first.limit());
+        assertEquals(List.of("kept"), texts(recent.missedBy(2, 1)));
+    }
+
+    @Test
+    void aSizeOfZeroKeepsNothing() {
+        RecentMessages recent = new RecentMessages(0, 1 << 20);
+        assertEquals(-1, recent.add(part("dropped")));
+        recent.delivered(-1, 1);
+        assertTrue(recent.missedBy(2, 100).isEmpty());
+    }
+}
@@ -0,0 +1,126 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+
+    private static final long MS = 1_000_000;
+
+    //a wheel of 8 one-millisecond ticks that started at time 0
+    private final TimingWheel wheel = new TimingWheel(MS, 8, 0);
+    private final List<String> fired = new ArrayList<>();
+
+    private TimingWheel.Timer timer(String name) {
+        return new TimingWheel.Timer(() -> fired.add(name));
+    }
+
+    @Test
+    void firesOnTheFirstTickAtOrAfterTheDeadline() {
+        wheel.schedule(timer("a"), 5 * MS);
+        wheel.schedule(timer("b"), 5 * MS + MS / 2);
+        wheel.advance(5 * MS - 1);
+        assertEquals(List.of(), fired);
+        wheel.advance(5 * MS);
+        assertEquals(List.of("a"), fired);
+        //rounded up to the next tick, never early
+        wheel.advance(6 * MS - 1);
+        assertEquals(List.of("a"), fired);
+        wheel.advance(6 * MS);
+        assertEquals(List.of("a", "b"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void aCancelledTimerDoesNotFire() {
+        TimingWheel.Timer timer = timer("a");
+        wheel.schedule(timer, 3 * MS);
+        wheel.cancel(timer);
+        wheel.cancel(timer);
+        assertEquals(0, wheel.size());
+        wheel.advance(10 * MS);
+        assertEquals(List.of(), fired);
+    }
+
+    @Test
+    void schedulingAgainMovesTheTimer() {
+        TimingWheel.Timer timer = timer("a");
+        wheel.schedule(timer, 3 * MS);
+        wheel.schedule(timer, 6 * MS);
+        assertEquals(1, wheel.size());
+        wheel.advance(3 * MS);
+        assertEquals(List.of(), fired);
+        wheel.advance(6 * MS);
+        assertEquals(List.of("a"), fired);
+    }
+
+    @Test
+    void aTimerALapAheadWaitsForItsOwnLap() {
+        //tick 20 shares a bucket with ticks 4 and 12
+        wheel.schedule(timer("late"), 20 * MS);
+        wheel.schedule(timer("soon"), 4 * MS);
+        wheel.advance(4 * MS);
+        assertEquals(List.of("soon"), fired);
+        wheel.advance(12 * MS);
+        assertEquals(List.of("soon"), fired);
+        wheel.advance(20 * MS);
+        assertEquals(List.of("soon", "late"), fired);
+    }
+
+    @Test
+    void aLongPauseFiresEverythingDue() {
+        wheel.schedule(timer("a"), 3 * MS);
+        wheel.schedule(timer("b"), 30 * MS);
+        wheel.schedule(timer("c"), 300 * MS);
+        wheel.advance(100 * MS);
+        assertEquals(2, fired.size());
+        assertEquals(1, wheel.size());
+        wheel.advance(300 * MS);
+        assertEquals(3, fired.size());
+    }
+
+    @Test
+    void aDeadlineThatPassedFiresOnTheNextTick() {
+        wheel.advance(10 * MS);
+        wheel.schedule(timer("a"), 2 * MS);
+        wheel.advance(11 * MS);
+        assertEquals(List.of("a"), fired);
+    }
+
+    @Test
+    void aTaskMayScheduleItselfAgain() {
+        TimingWheel.Timer[] periodic = new TimingWheel.Timer[1];
+        long[] now = {0};
+        periodic[0] = new TimingWheel.Timer(() -> {
+            fired.add("tick");
+            wheel.schedule(periodic[0], now[0] + 2 * MS);
+        });
+        wheel.schedule(periodic[0], 2 * MS);
+        for (now[0] = 0; now[0] <= 10 * MS; now[0] += MS) {
+            wheel.advance(now[0]);
+        }
+        assertEquals(5, fired.size());
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    void aFailedTaskDoesNotStopTheOthers() {
+        wheel.schedule(new TimingWheel.Timer(() -> {
+            throw new IllegalStateException("expected by the test");
+        }), 2 * MS);
+        wheel.schedule(timer("a"), 2 * MS);
+        wheel.advance(2 * MS);
+        assertEquals(List.of("a"), fired);
+    }
+
+    @Test
+    void waitsOnlyUntilTheNextTick() {
+        assertEquals(0, wheel.millisToNextTick(0));
+        wheel.schedule(timer("a"), 5 * MS);
+        wheel.advance(MS / 2);
+        assertEquals(1, wheel.millisToNextTick(MS / 2));
+    }
+}
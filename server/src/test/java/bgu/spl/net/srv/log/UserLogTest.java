@@ -0,0 +1,173 @@
+package bgu.spl.net.srv.log;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import bgu.spl.net.srv.AckMode;
+import bgu.spl.net.srv.Subscription;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class UserLogTest {
+
+    private static final long NO_TIMED_SNAPSHOT = 3_600_000;
+
+    @TempDir
+    Path dir;
+
+    //forces every change to the disk, snapshots only when a log is opened over changes or fills up
+    private UserLog open() throws IOException {
+        return new UserLog(dir, 64 << 10, NO_TIMED_SNAPSHOT, 0);
+    }
+
+    //username to "password [destination id ack selector, ...]"
+    private static Map<String, String> state(UserLog log) {
+        Map<String, String> state = new TreeMap<>();
+        for (UserLog.Account account : log.accounts()) {
+            List<String> subscriptions = new ArrayList<>();
+            for (Subscription subscription : account.getSubscriptions()) {
+                subscriptions.add(subscription.getDestination() + " " + subscription.getId() + " "
+                        + subscription.getAckMode() + " " + subscription.getSelector());
+            }
+            state.put(account.getUsername(), account.getPassword() + " " + subscriptions);
+        }
+        return state;
+    }
+
+    @Test
+    void theStateSurvivesARestart() throws IOException {
+        Map<String, String> before;
+        try (UserLog log = open()) {
+            log.userAdded("alice", "a");
+            log.userAdded("bob", "b");
+            log.subscribed("alice", new Subscription("police", 1, AckMode.AUTO, null));
+            log.subscribed("alice", new Subscription("fire", 2, AckMode.CLIENT, "city = 'Gotham'"));
+            log.subscribed("bob", new Subscription("police/#", 1, AckMode.CLIENT_INDIVIDUAL, null));
+            log.unsubscribed("alice", 1);
+            log.loggedOut("bob");
+            before = state(log);
+        }
+        assertEquals("a [fire 2 CLIENT city = 'Gotham']", before.get("alice"));
+        assertEquals("b []", before.get("bob"));
+        try (UserLog log = open()) {
+            assertEquals(before, state(log));
+            awaitSnapshot();
+        }
+    }
+
+    @Test
+    void theSnapshotAndTheLogAfterItLoadTogether() throws IOException {
+        try (UserLog log = open()) {
+            log.userAdded("alice", "a");
+            log.subscribed("alice", new Subscription("police", 1, AckMode.AUTO, null));
+        }
+        Map<String, String> after;
+        try (UserLog log = open()) {
+            //the logs it loaded become a snapshot, the changes from here on go to the log after it
+            awaitSnapshot();
+            log.userAdded("carol", "c");
+            log.subscribed("alice", new Subscription("fire", 2, AckMode.AUTO, null));
+            log.unsubscribed("alice", 1);
+            after = state(log);
+        }
+        assertEquals(1, files("snapshot-").size());
+        try (UserLog log = open()) {
+            assertEquals(after, state(log));
+            awaitSnapshot();
+        }
+        //and once more from the snapshot alone
+        try (UserLog log = open()) {
+            assertEquals(after, state(log));
+        }
+    }
+
+    @Test
+    void aTornRecordEndsTheLog() throws IOException {
+        try (UserLog log = open()) {
+            log.userAdded("alice", "a");
+            log.userAdded("bob", "b");
+            log.userAdded("carol", "c");
+        }
+        //a crash in the middle of bob's record: its body no longer matches its crc
+        Path wal = files("wal-").get(0);
+        try (FileChannel channel = FileChannel.open(wal, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            int second = 8 + header.flip().getInt();
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) 0xff}), second + 8 + 1);
+        }
+        try (UserLog log = open()) {
+            //what came after the tear is not trusted either
+            assertEquals(List.of("alice"), List.copyOf(state(log).keySet()));
+            awaitSnapshot();
+            log.userAdded("dave", "d");
+        }
+        try (UserLog log = open()) {
+            assertEquals(List.of("alice", "dave"), List.copyOf(state(log).keySet()));
+            awaitSnapshot();
+        }
+    }
+
+    @Test
+    void aRecordCutShortEndsTheLog() throws IOException {
+        try (UserLog log = open()) {
+            log.userAdded("alice", "a");
+            log.userAdded("bob", "b");
+        }
+        //bob's length is written, its body is not: the length points past the end of the file
+        Path wal = files("wal-").get(0);
+        int second;
+        try (FileChannel channel = FileChannel.open(wal, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            second = 8 + header.flip().getInt();
+            channel.truncate(second + 8 + 2);
+        }
+        try (UserLog log = open()) {
+            assertEquals(List.of("alice"), List.copyOf(state(log).keySet()));
+            awaitSnapshot();
+        }
+    }
+
+    private List<Path> files(String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(prefix)).sorted().toList();
+        }
+    }
+
+    //the snapshot a log opened over changes takes in the background is done: it and the one log after it are all that is left
+    private void awaitSnapshot() throws IOException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            List<Path> snapshots = files("snapshot-");
+            List<Path> wals = files("wal-");
+            if (snapshots.size() == 1 && !snapshots.get(0).toString().endsWith(".tmp") && wals.size() == 1
+                    && generation(snapshots.get(0)).equals(generation(wals.get(0)))) {
+                return;
+            }
+            assertTrue(System.currentTimeMillis() < deadline, "no snapshot was taken: " + snapshots + " " + wals);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static String generation(Path file) {
+        String name = file.getFileName().toString();
+        return name.substring(name.indexOf('-') + 1);
+    }
+}